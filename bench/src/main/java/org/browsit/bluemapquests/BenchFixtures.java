@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import com.sk89q.worldedit.math.BlockVector2;
+import com.sk89q.worldguard.protection.regions.ProtectedPolygonalRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import de.bluecolored.bluemap.api.markers.MarkerSet;
+import me.pikamug.quests.quests.Quest;
+import me.pikamug.quests.quests.components.Stage;
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Synthetic quests, NPCs and regions for running the update pipeline outside of a server.
+ * Quest, Stage and World are interfaces, so they are backed by proxies answering from a map,
+ * which churn edits in place like an admin editing quests on a live server.
+ */
+final class BenchFixtures {
+    enum Kind { NPC, CIRCLE, AREA, MIXED }
+
+    final List<World> worlds = new ArrayList<>();
+    final List<Quest> quests = new ArrayList<>();
+    final Npcs npcs = new Npcs();
+    final Regions regions = new Regions(worlds);
+    private final Kind kind;
+    private final int stageCount;
+    private final List<UUID> created = new ArrayList<>();
+    private final List<UUID> npcPool = new ArrayList<>();
+    private final List<String> regionPool = new ArrayList<>();
+    // Value maps of each quest and its stages
+    private final Map<Quest, List<Map<String, Object>>> values = new HashMap<>();
+    private int nextQuest;
+    private int nextRegion;
+
+    /**
+     * @param questCount number of quests to generate
+     * @param worldCount number of worlds to spread objectives over
+     * @param kind which objective types the quests use
+     * @param seed random seed, the same seed always produces the same fixtures
+     */
+    BenchFixtures(int questCount, int worldCount, Kind kind, long seed) {
+        this(questCount, 3, 0, 0, worldCount, kind, seed);
+    }
+
+    /**
+     * @param questCount number of quests to generate
+     * @param stageCount number of stages per quest
+     * @param npcCount number of NPCs quests pick from, 0 to create new NPCs for every reference
+     * @param regionCount number of regions quests pick from, 0 to create a region per quest
+     * @param worldCount number of worlds to spread objectives over
+     * @param kind which objective types the quests use
+     * @param seed random seed, the same seed always produces the same fixtures
+     */
+    BenchFixtures(int questCount, int stageCount, int npcCount, int regionCount, int worldCount, Kind kind,
+                  long seed) {
+        final Random random = new Random(seed);
+        this.kind = kind;
+        this.stageCount = stageCount;
+        for (int i = 0; i < worldCount; i++) {
+            worlds.add(world("world" + i, new UUID(seed, i)));
+        }
+        for (int i = 0; i < npcCount; i++) {
+            npcPool.add(npc(worlds.get(i % worldCount), random));
+        }
+        for (int i = 0; i < regionCount; i++) {
+            final String regionId = "region-" + i;
+            regions.add(regionId, worlds.get(i % worldCount).getUID(), random);
+            if (i % 5 == 0 && worldCount > 1) {
+                // Worlds may define regions with the same id
+                regions.add(regionId, worlds.get((i + 1) % worldCount).getUID(), random);
+            }
+            regionPool.add(regionId);
+        }
+        nextRegion = regionCount;
+        for (int q = 0; q < questCount; q++) {
+            quests.add(quest(random));
+        }
+    }
+
+    /**
+     * Replace some quests with new ones, like a server admin editing quests.
+     *
+     * @param count number of quests to remove and add
+     */
+    void replaceQuests(int count, Random random) {
+        for (int i = 0; i < count && !quests.isEmpty(); i++) {
+            values.remove(quests.remove(random.nextInt(quests.size())));
+        }
+        for (int i = 0; i < count; i++) {
+            quests.add(quest(random));
+        }
+    }
+
+    /**
+     * Delete some NPCs and create new ones in their place, pointing the quests that referenced
+     * the deleted NPCs to their replacements.
+     *
+     * @param count number of NPCs to replace
+     * @return UUIDs of the deleted NPCs
+     */
+    List<UUID> replaceNpcs(int count, Random random) {
+        final List<UUID> pool = npcPool.isEmpty() ? created : npcPool;
+        final Map<UUID, UUID> replaced = new HashMap<>();
+        for (int i = 0; i < count && !pool.isEmpty(); i++) {
+            final int index = random.nextInt(pool.size());
+            final UUID deleted = pool.get(index);
+            final NpcLocator.Located l = npcs.located.remove(deleted);
+            final UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            npcs.located.put(uuid, new NpcLocator.Located(l.world, coordinate(random), l.y, coordinate(random),
+                l.name));
+            pool.set(index, uuid);
+            if (pool != created) {
+                created.set(created.indexOf(deleted), uuid);
+            }
+            replaced.put(deleted, uuid);
+        }
+        retarget(replaced);
+        return new ArrayList<>(replaced.keySet());
+    }
+
+    /**
+     * Delete some regions and define new ones with other ids in the same worlds, pointing the
+     * quests that referenced the deleted regions to their replacements.
+     *
+     * @param count number of regions to replace
+     */
+    void replaceRegions(int count, Random random) {
+        final Map<String, String> replaced = new HashMap<>();
+        for (int i = 0; i < count && !regionPool.isEmpty(); i++) {
+            final int index = random.nextInt(regionPool.size());
+            final String deleted = regionPool.get(index);
+            final String regionId = "region-" + nextRegion++;
+            regions.replace(deleted, regionId, random);
+            regionPool.set(index, regionId);
+            replaced.put(deleted, regionId);
+        }
+        retarget(replaced);
+    }
+
+    /**
+     * Move a share of the NPCs to simulate a busy server between two updates.
+     *
+     * @param fraction share of NPCs to move, 0 to 1
+     * @return UUIDs of the moved NPCs
+     */
+    List<UUID> moveNpcs(double fraction, Random random) {
+        final List<UUID> moved = new ArrayList<>();
+        for (final Map.Entry<UUID, NpcLocator.Located> entry : npcs.located.entrySet()) {
+            if (random.nextDouble() < fraction) {
+                final NpcLocator.Located l = entry.getValue();
+                entry.setValue(new NpcLocator.Located(l.world, l.x + random.nextInt(9) - 4, l.y,
+                    l.z + random.nextInt(9) - 4, l.name));
+                moved.add(entry.getKey());
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Move every NPC the same distance along the x axis.
+     */
+    void shiftNpcs(double distance) {
+        for (final Map.Entry<UUID, NpcLocator.Located> entry : npcs.located.entrySet()) {
+            final NpcLocator.Located l = entry.getValue();
+            entry.setValue(new NpcLocator.Located(l.world, l.x + distance, l.y, l.z, l.name));
+        }
+    }
+
+    /**
+     * Fresh marker sets for every world and layer.
+     */
+    Map<UUID, Map<MarkerLayer, List<MarkerSet>>> markerSets() {
+        // Two maps per world, like an overworld with a flat and a 3D map
+        final Map<UUID, Map<MarkerLayer, List<MarkerSet>>> sets = new HashMap<>();
+        for (final World world : worlds) {
+            final Map<MarkerLayer, List<MarkerSet>> worldSets = new EnumMap<>(MarkerLayer.class);
+            for (final MarkerLayer layer : MarkerLayer.values()) {
+                final List<MarkerSet> layerSets = new ArrayList<>();
+                layerSets.add(MarkerSet.builder().label(layer.defaultLabel).build());
+                layerSets.add(MarkerSet.builder().label(layer.defaultLabel).build());
+                worldSets.put(layer, layerSets);
+            }
+            sets.put(world.getUID(), worldSets);
+        }
+        return sets;
+    }
+
+    private Quest quest(Random random) {
+        final int q = nextQuest++;
+        final World world = worlds.get(q % worlds.size());
+        final boolean withNpcs = kind == Kind.NPC || kind == Kind.MIXED;
+        final boolean withCircles = kind == Kind.CIRCLE || kind == Kind.MIXED;
+        final boolean withAreas = kind == Kind.AREA || kind == Kind.MIXED;
+        UUID npcStart = null;
+        String regionStart = null;
+        final LinkedList<Stage> stages = new LinkedList<>();
+        final List<Map<String, Object>> questValues = new ArrayList<>();
+        for (int s = 0; s < stageCount; s++) {
+            final Map<String, Object> values = new HashMap<>();
+            questValues.add(values);
+            final LinkedList<Location> kill = new LinkedList<>();
+            final LinkedList<Location> reach = new LinkedList<>();
+            final LinkedList<Integer> killRadii = new LinkedList<>();
+            final LinkedList<Integer> reachRadii = new LinkedList<>();
+            final LinkedList<String> killNames = new LinkedList<>();
+            final LinkedList<String> reachNames = new LinkedList<>();
+            final LinkedList<UUID> interact = new LinkedList<>();
+            final LinkedList<UUID> killNpcs = new LinkedList<>();
+            final LinkedList<UUID> deliver = new LinkedList<>();
+            if (withCircles) {
+                kill.add(location(world, random));
+                killRadii.add(4 + random.nextInt(60));
+                killNames.add("Kill " + q + "-" + s);
+                reach.add(location(world, random));
+                reachRadii.add(4 + random.nextInt(60));
+                reachNames.add("Reach " + q + "-" + s);
+            }
+            if (withNpcs) {
+                interact.add(referencedNpc(world, random));
+                deliver.add(referencedNpc(world, random));
+                if (!created.isEmpty()) {
+                    // Shared NPCs end up with several roles
+                    killNpcs.add(created.get(random.nextInt(created.size())));
+                }
+            }
+            values.put("getLocationsToKillWithin", kill);
+            values.put("getRadiiToKillWithin", killRadii);
+            values.put("getKillNames", killNames);
+            values.put("getLocationsToReach", reach);
+            values.put("getRadiiToReachWithin", reachRadii);
+            values.put("getLocationNames", reachNames);
+            values.put("getNpcsToInteract", interact);
+            values.put("getNpcsToKill", killNpcs);
+            values.put("getItemDeliveryTargets", deliver);
+            stages.add(proxy(Stage.class, values));
+        }
+        if (withNpcs) {
+            npcStart = referencedNpc(world, random);
+        }
+        if (withAreas) {
+            if (regionPool.isEmpty()) {
+                regionStart = "region-" + q;
+                regions.add(regionStart, world.getUID(), random);
+            } else {
+                regionStart = regionPool.get(random.nextInt(regionPool.size()));
+            }
+        }
+        final Map<String, Object> values = new HashMap<>();
+        values.put("getId", "quest-" + q);
+        values.put("getName", "Quest " + q);
+        values.put("getNpcStart", npcStart);
+        values.put("getRegionStart", regionStart);
+        values.put("getStages", stages);
+        questValues.add(values);
+        final Quest quest = proxy(Quest.class, values);
+        this.values.put(quest, questValues);
+        return quest;
+    }
+
+    /**
+     * Replace references to deleted NPCs or regions in the values of every quest and stage.
+     */
+    @SuppressWarnings("unchecked")
+    private void retarget(Map<?, ?> replaced) {
+        if (replaced.isEmpty()) {
+            return;
+        }
+        for (final List<Map<String, Object>> questValues : values.values()) {
+            for (final Map<String, Object> map : questValues) {
+                for (final Map.Entry<String, Object> entry : map.entrySet()) {
+                    final Object value = entry.getValue();
+                    if (value instanceof List) {
+                        ((List<Object>) value).replaceAll(v -> replaced.containsKey(v) ? replaced.get(v) : v);
+                    } else if (replaced.containsKey(value)) {
+                        entry.setValue(replaced.get(value));
+                    }
+                }
+            }
+        }
+    }
+
+    private UUID referencedNpc(World world, Random random) {
+        return npcPool.isEmpty() ? npc(world, random) : npcPool.get(random.nextInt(npcPool.size()));
+    }
+
+    private UUID npc(World world, Random random) {
+        final UUID uuid = new UUID(random.nextLong(), random.nextLong());
+        npcs.located.put(uuid, new NpcLocator.Located(world.getUID(), coordinate(random), 64 + random.nextInt(64),
+            coordinate(random), "NPC " + created.size()));
+        created.add(uuid);
+        return uuid;
+    }
+
+    private static Location location(World world, Random random) {
+        return new Location(world, coordinate(random), 64 + random.nextInt(64), coordinate(random));
+    }
+
+    private static double coordinate(Random random) {
+        return random.nextInt(20000) - 10000;
+    }
+
+    private static World world(String name, UUID uid) {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("getName", name);
+        values.put("getUID", uid);
+        return proxy(World.class, values);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Map<String, Object> values) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (p, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(p);
+                case "equals":
+                    return p == args[0];
+                case "toString":
+                    return type.getSimpleName() + values.get("getId");
+                case "compareTo":
+                    return 0;
+                default:
+                    return values.get(method.getName());
+            }
+        });
+    }
+
+    /**
+     * NPC backend answering from a map, like a Citizens registry with every NPC spawned.
+     */
+    static final class Npcs implements NpcLocator {
+        final Map<UUID, Located> located = new HashMap<>();
+
+        @Override
+        public Located locate(UUID uuid) {
+            return located.get(uuid);
+        }
+    }
+
+    /**
+     * Region cache in front of a fake WorldGuard. Regions are WorldGuard polygons and their
+     * outlines are read by the WorldGuard 7 area provider, the same way as on a server.
+     */
+    static final class Regions extends RegionCache {
+        private static final AreaProvider PROVIDER = new AreaProvider_WG7();
+        private final List<World> worlds;
+        private final Map<UUID, Map<String, ProtectedRegion>> defined = new HashMap<>();
+
+        Regions(List<World> worlds) {
+            super(null);
+            this.worlds = worlds;
+        }
+
+        void add(String regionId, UUID world, Random random) {
+            defined.computeIfAbsent(world, w -> new HashMap<>()).put(regionId, polygon(regionId, random));
+        }
+
+        /**
+         * Delete a region from every world defining it, and define a new one in its place.
+         */
+        void replace(String regionId, String replacement, Random random) {
+            for (final Map<String, ProtectedRegion> worldRegions : defined.values()) {
+                if (worldRegions.remove(regionId) != null) {
+                    worldRegions.put(replacement, polygon(replacement, random));
+                }
+            }
+        }
+
+        /**
+         * Redefine a share of the regions, like an admin editing them in WorldGuard. Each edit
+         * swaps in a new region instance.
+         *
+         * @param fraction share of regions to edit, 0 to 1
+         */
+        void edit(double fraction, Random random) {
+            for (final Map<String, ProtectedRegion> worldRegions : defined.values()) {
+                for (final Map.Entry<String, ProtectedRegion> entry : worldRegions.entrySet()) {
+                    if (random.nextDouble() < fraction) {
+                        entry.setValue(polygon(entry.getKey(), random));
+                    }
+                }
+            }
+        }
+
+        @Override
+        List<World> worlds() {
+            return worlds;
+        }
+
+        @Override
+        AreaProvider provider() {
+            return PROVIDER;
+        }
+
+        @Override
+        ProtectedRegion find(World world, String regionId) {
+            final Map<String, ProtectedRegion> worldRegions = defined.get(world.getUID());
+            return worldRegions != null ? worldRegions.get(regionId) : null;
+        }
+
+        private static ProtectedRegion polygon(String regionId, Random random) {
+            // Irregular polygon around a random center, like a hand drawn poly2d region
+            final int points = 4 + random.nextInt(28);
+            final double cx = coordinate(random);
+            final double cz = coordinate(random);
+            final List<BlockVector2> outline = new ArrayList<>(points);
+            for (int i = 0; i < points; i++) {
+                final double angle = 2 * Math.PI * i / points;
+                final double r = 16 + random.nextInt(112);
+                outline.add(BlockVector2.at((int) Math.floor(cx + Math.cos(angle) * r),
+                    (int) Math.floor(cz + Math.sin(angle) * r)));
+            }
+            return new ProtectedPolygonalRegion(regionId, outline, 0, 255);
+        }
+    }
+}
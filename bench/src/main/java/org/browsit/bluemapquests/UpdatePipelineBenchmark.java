@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import org.bukkit.configuration.MemoryConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Cost of one update cycle, split into its phases. Run with the gc profiler to see the
+ * allocation rate as well: java -jar bench/target/benchmarks.jar -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UpdatePipelineBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int quests;
+
+    @Param({ "NPC", "CIRCLE", "AREA", "MIXED" })
+    public String kind;
+
+    private BenchFixtures fixtures;
+    private UpdatePipeline pipeline;
+    private UpdatePipeline restyled;
+    private UpdateSnapshot snapshot;
+    private Map<String, MarkerSpec> desired;
+    private Map<String, MarkerSpec> alternate;
+    private MarkerSync idleSync;
+    private MarkerSync changingSync;
+    private MarkerSync runSync;
+    private MarkerSync parallelSync;
+    private ForkJoinPool pool;
+    private boolean flip;
+    private final UpdateStats stats = new UpdateStats();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixtures = new BenchFixtures(quests, 2, BenchFixtures.Kind.valueOf(kind), 42L);
+        pipeline = pipeline(config(""));
+        restyled = pipeline(config(" (changed)"));
+        snapshot = pipeline.capture(fixtures.quests);
+        desired = pipeline.build(snapshot);
+        alternate = restyled.build(restyled.capture(fixtures.quests));
+        idleSync = new MarkerSync(fixtures.markerSets(), stats, null);
+        idleSync.apply(desired);
+        changingSync = new MarkerSync(fixtures.markerSets(), stats, null);
+        changingSync.apply(desired);
+        runSync = new MarkerSync(fixtures.markerSets(), stats, null);
+        pool = new ForkJoinPool(fixtures.worlds.size());
+        parallelSync = new MarkerSync(fixtures.markerSets(), stats, pool);
+        parallelSync.apply(desired);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Server thread part: walk quests, stages and objectives and resolve NPCs and regions.
+     */
+    @Benchmark
+    public UpdateSnapshot capture() {
+        return pipeline.capture(fixtures.quests);
+    }
+
+    /**
+     * Worker thread part: turn a snapshot into marker specs.
+     */
+    @Benchmark
+    public Map<String, MarkerSpec> build() {
+        return pipeline.build(snapshot);
+    }
+
+    /**
+     * Apply a state identical to the one already shown, the common case on a quiet server.
+     */
+    @Benchmark
+    public long applyIdle() {
+        idleSync.apply(desired);
+        return idleSync.getGeneration();
+    }
+
+    /**
+     * Apply a state where every label changed, so every marker is rebuilt and put.
+     */
+    @Benchmark
+    public long applyChanged() {
+        flip = !flip;
+        changingSync.apply(flip ? alternate : desired);
+        return changingSync.getGeneration();
+    }
+
+    /**
+     * Same as {@link #applyChanged()}, with each world applied on its own thread.
+     */
+    @Benchmark
+    public long applyChangedParallel() {
+        flip = !flip;
+        parallelSync.apply(flip ? alternate : desired);
+        return parallelSync.getGeneration();
+    }
+
+    /**
+     * Whole cycle as done by the update job: capture, build and apply.
+     */
+    @Benchmark
+    public long run() {
+        runSync.apply(pipeline.build(pipeline.capture(fixtures.quests)));
+        return runSync.getGeneration();
+    }
+
+    private UpdatePipeline pipeline(RenderConfig config) {
+        final NpcResolver resolver = new NpcResolver();
+        resolver.register(fixtures.npcs);
+        return new UpdatePipeline(() -> config, resolver, fixtures.regions, stats, Logger.getLogger("bench"));
+    }
+
+    /**
+     * @param suffix appended to every label prefix, to produce a state differing in every label
+     */
+    static RenderConfig config(String suffix) {
+        final MemoryConfiguration cfg = new MemoryConfiguration();
+        cfg.set("prefixes.start", "Start" + suffix);
+        cfg.set("prefixes.interact", "Interact" + suffix);
+        cfg.set("prefixes.kill", "Kill" + suffix);
+        cfg.set("prefixes.delivery", "Deliver" + suffix);
+        cfg.set("prefixes.kill-area", "Kill Area" + suffix);
+        cfg.set("prefixes.reach-area", "Reach Area" + suffix);
+        cfg.set("prefixes.wg-region", "Region" + suffix);
+        cfg.set("prefixes.npc-cluster", "NPCs" + suffix);
+        cfg.set("circle.line-style.color", "0xFF0000");
+        cfg.set("circle.fill-style.color", "0xFF0000");
+        cfg.set("area.line-style.color", "0x0000FF");
+        cfg.set("area.fill-style.color", "0x0000FF");
+        cfg.set("render.height", 64);
+        cfg.set("render.max-distance", 10000000);
+        return new RenderConfig(cfg,
+            new String[] { "markers/start.png", "markers/interact.png", "markers/kill.png", "markers/delivery.png" });
+    }
+}
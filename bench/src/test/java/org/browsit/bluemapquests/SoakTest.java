@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import com.flowpowered.math.vector.Vector3d;
+import de.bluecolored.bluemap.api.markers.Marker;
+import de.bluecolored.bluemap.api.markers.MarkerSet;
+import me.pikamug.quests.quests.Quest;
+import org.bukkit.configuration.MemoryConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Runs the update job over thousands of simulated ticks while NPCs move and get replaced, and
+ * quests and regions are replaced and edited. Fails if ticks or cycles get slow, the markers
+ * drift from what a fresh update produces, caches keep growing or the heap does. Sized by soak.*
+ * system properties, e.g. mvn -P bench verify -Dsoak.cycles=5000 -Dsoak.quests=5000
+ */
+class SoakTest {
+    // Ticks between full updates, flushes and tracking samples
+    private static final int PERIOD = 20;
+    private static final int EVENT_DELAY = 5;
+    private static final int TRACKING_INTERVAL = 2;
+    private static final int MAX_SETTLE_TICKS = 10_000;
+    // Further than the default tracking dead-band
+    private static final double NPC_SHIFT = 5;
+
+    private final int cycles = Integer.getInteger("soak.cycles", 300);
+    private final int warmup = Integer.getInteger("soak.warmup", 50);
+    private final int quietEvery = Math.max(1, Integer.getInteger("soak.quiet-every", 25));
+    private final double npcMoves = option("npc-moves", 0.05);
+    private final int npcChurn = Integer.getInteger("soak.npc-churn", 3);
+    private final int questChurn = Integer.getInteger("soak.quest-churn", 5);
+    private final int regionChurn = Integer.getInteger("soak.region-churn", 2);
+    private final double regionEdits = option("region-edits", 0.01);
+    private final double maxCycleMillis = option("max-cycle-ms", 250);
+    private final long maxHeapGrowth = Long.getLong("soak.max-heap-growth-mb", 64) << 20;
+    private final double maxCacheGrowth = option("max-cache-growth", 0.2);
+    private final Random random = new Random(Long.getLong("soak.seed", 1));
+    private final BenchFixtures fixtures = new BenchFixtures(
+        Integer.getInteger("soak.quests", 500),
+        Integer.getInteger("soak.stages", 3),
+        Integer.getInteger("soak.npcs", 300),
+        Integer.getInteger("soak.regions", 100),
+        Integer.getInteger("soak.worlds", 3),
+        BenchFixtures.Kind.MIXED, random.nextLong());
+    private final Map<UUID, Map<MarkerLayer, List<MarkerSet>>> sets = fixtures.markerSets();
+    private final UpdateStats stats = new UpdateStats();
+    private final DirtyQueue dirty = new DirtyQueue();
+    private final List<Runnable> tickTasks = new ArrayList<>();
+    private final long maxTickNanos = (long) (option("max-tick-ms", 50) * 1_000_000);
+    private RenderConfig config;
+    private UpdatePipeline pipeline;
+    private ForkJoinPool workers;
+    private MarkerSync sync;
+    private UpdateJob job;
+    private long ticks;
+    private long measuredTicks;
+    private long slowTicks;
+
+    @Test
+    void markersFollowChurn() throws InterruptedException {
+        soak(false);
+    }
+
+    @Test
+    void clusteredMarkersFollowChurn() throws InterruptedException {
+        soak(true);
+    }
+
+    private void soak(boolean clustering) throws InterruptedException {
+        final MemoryConfiguration cfg = new MemoryConfiguration();
+        cfg.set("clustering.enabled", clustering);
+        cfg.set("tracking.interval", TRACKING_INTERVAL);
+        config = new RenderConfig(cfg,
+            new String[] { "markers/start.png", "markers/interact.png", "markers/kill.png", "markers/delivery.png" });
+        pipeline = pipeline(stats);
+        workers = new ForkJoinPool(Math.max(1, fixtures.worlds.size()));
+        sync = new MarkerSync(sets, stats, workers);
+        job = new UpdateJob(new Host(), pipeline, sync, dirty, stats, workers, new AtomicBoolean(),
+            (long) (option("tick-budget-ms", 0.5) * 1_000_000), 256, Logger.getLogger("soak"));
+        long baselineHeap = 0;
+        Map<String, Integer> baselineCaches = null;
+        int baselineMarkers = 0;
+        long checked = 0;
+        try {
+            for (int cycle = 0; cycle < cycles; cycle++) {
+                if (cycle == warmup) {
+                    settle();
+                    baselineHeap = usedHeap();
+                    baselineCaches = pipeline.cacheSizes();
+                    baselineMarkers = sync.getApplied().size();
+                    measuredTicks = 0;
+                    slowTicks = 0;
+                }
+                final boolean quiet = cycle % quietEvery == quietEvery - 1;
+                if (!quiet) {
+                    // Deleted NPCs are reported by events, quest and region edits only show up in full updates
+                    fixtures.replaceNpcs(npcChurn, random).forEach(dirty::markNpc);
+                    fixtures.replaceQuests(questChurn, random);
+                    fixtures.replaceRegions(regionChurn, random);
+                    fixtures.regions.edit(regionEdits, random);
+                }
+                for (int tick = 0; tick < PERIOD; tick++) {
+                    if (!quiet) {
+                        // Teleports are reported by events, NPCs walking around are only seen by tracking
+                        final List<UUID> moved = fixtures.moveNpcs(npcMoves / PERIOD, random);
+                        for (int i = 0; i < moved.size(); i += 2) {
+                            dirty.markNpc(moved.get(i));
+                        }
+                    }
+                    tick(tick == 0);
+                }
+                if (quiet) {
+                    // Once the update in flight is done, one started after the last change must show it
+                    // exactly. Every NPC moved since the one before, so all of them are tracked from now on.
+                    settle();
+                    fixtures.shiftNpcs(NPC_SHIFT);
+                    tick(true);
+                    settle();
+                    assertMatchesFreshUpdate(cycle);
+                    // Walking on, NPC markers follow by tracking or, with clustering, by the next flush
+                    fixtures.shiftNpcs(NPC_SHIFT);
+                    for (int tick = 0; tick < TRACKING_INTERVAL + EVENT_DELAY; tick++) {
+                        tick(false);
+                    }
+                    settle();
+                    assertNpcMarkersFollow(cycle);
+                }
+                if (sync.getGeneration() != checked && tickTasks.isEmpty() && !job.isBusy()) {
+                    checked = sync.getGeneration();
+                    assertSetsMatchApplied(cycle);
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+        final long heapGrowth = usedHeap() - baselineHeap;
+        final UpdateStats.Snapshot snapshot = stats.snapshot();
+        System.out.printf("%d cycles, %d quests, %d NPCs, %d worlds, %d markers%n", cycles,
+            fixtures.quests.size(), fixtures.npcs.located.size(), fixtures.worlds.size(), sync.getApplied().size());
+        System.out.printf("%d of %d ticks slow, cycle p99 %.2f ms, heap growth %.1f MB%n", slowTicks,
+            measuredTicks, snapshot.p99 / 1e6, heapGrowth / (double) (1 << 20));
+        System.out.println("Caches after warmup " + baselineCaches + ", at the end " + pipeline.cacheSizes());
+
+        // Captures are sliced to stay well within a tick, allow for the odd GC pause
+        assertTrue(slowTicks <= measuredTicks / 100, slowTicks + " of " + measuredTicks + " ticks took longer than "
+            + maxTickNanos / 1_000_000 + " ms");
+        assertTrue(snapshot.p99 / 1e6 <= maxCycleMillis, String.format("p99 cycle time %.2f ms exceeds %.2f ms",
+            snapshot.p99 / 1e6, maxCycleMillis));
+        assertTrue(heapGrowth <= maxHeapGrowth, String.format("Heap grew by %.1f MB, at most %d MB allowed",
+            heapGrowth / (double) (1 << 20), maxHeapGrowth >> 20));
+        if (baselineCaches != null) {
+            // Churn replaces NPCs, regions and quests one for one, so nothing should pile up
+            assertWithinGrowth("markers", baselineMarkers, sync.getApplied().size());
+            final Map<String, Integer> caches = pipeline.cacheSizes();
+            for (final Map.Entry<String, Integer> entry : baselineCaches.entrySet()) {
+                assertWithinGrowth(entry.getKey(), entry.getValue(), caches.get(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Run one server tick: continue a sliced capture, then whichever tasks are due, and wait for
+     * the worker they started like the next tick would find it done.
+     */
+    private void tick(boolean fullUpdate) throws InterruptedException {
+        final long start = System.nanoTime();
+        for (final Runnable task : new ArrayList<>(tickTasks)) {
+            task.run();
+        }
+        if (fullUpdate) {
+            job.run();
+        }
+        if (ticks % EVENT_DELAY == 0) {
+            job.flush();
+        }
+        if (ticks % TRACKING_INTERVAL == 0) {
+            job.track();
+        }
+        measuredTicks++;
+        if (System.nanoTime() - start > maxTickNanos) {
+            slowTicks++;
+        }
+        ticks++;
+        workers.awaitQuiescence(1, TimeUnit.MINUTES);
+        if (tickTasks.isEmpty()) {
+            assertFalse(job.isBusy(), "Worker still busy after a minute");
+        }
+    }
+
+    /**
+     * Tick until nothing is in flight and every queued NPC was flushed.
+     */
+    private void settle() throws InterruptedException {
+        for (int i = 0; job.isBusy() || !dirty.isEmpty(); i++) {
+            if (i == MAX_SETTLE_TICKS) {
+                fail("Updates did not settle within " + MAX_SETTLE_TICKS + " ticks");
+            }
+            tick(false);
+        }
+    }
+
+    /**
+     * Compare the applied markers to what a pipeline without any history builds from the current
+     * fixtures, so that stale, missing or moved markers show up.
+     */
+    private void assertMatchesFreshUpdate(int cycle) {
+        final UpdatePipeline fresh = pipeline(new UpdateStats());
+        final Map<String, MarkerSpec> desired = fresh.build(fresh.capture(fixtures.quests));
+        final Map<String, MarkerSpec> applied = sync.getApplied();
+        if (!desired.equals(applied)) {
+            final Set<String> missing = new HashSet<>(desired.keySet());
+            missing.removeAll(applied.keySet());
+            final Set<String> stale = new HashSet<>(applied.keySet());
+            stale.removeAll(desired.keySet());
+            int differing = 0;
+            for (final Map.Entry<String, MarkerSpec> entry : desired.entrySet()) {
+                final MarkerSpec spec = applied.get(entry.getKey());
+                if (spec != null && !spec.equals(entry.getValue())) {
+                    differing++;
+                }
+            }
+            fail("Cycle " + cycle + ": " + missing.size() + " markers missing, " + stale.size() + " stale, "
+                + differing + " out of date, e.g. " + (missing.isEmpty() ? stale : missing).stream().limit(3)
+                .reduce((a, b) -> a + ", " + b).orElse("none"));
+        }
+    }
+
+    /**
+     * Every map of a world must hold exactly the applied markers of each layer.
+     */
+    private void assertSetsMatchApplied(int cycle) {
+        final Map<UUID, Map<MarkerLayer, Set<String>>> expected = new HashMap<>();
+        for (final Map.Entry<String, MarkerSpec> entry : sync.getApplied().entrySet()) {
+            final MarkerSpec spec = entry.getValue();
+            expected.computeIfAbsent(spec.getWorld(), w -> new EnumMap<>(MarkerLayer.class))
+                .computeIfAbsent(spec.getLayer(), l -> new HashSet<>()).add(entry.getKey());
+        }
+        for (final Map.Entry<UUID, Map<MarkerLayer, List<MarkerSet>>> world : sets.entrySet()) {
+            for (final Map.Entry<MarkerLayer, List<MarkerSet>> layer : world.getValue().entrySet()) {
+                final Set<String> ids = expected.getOrDefault(world.getKey(), new EnumMap<>(MarkerLayer.class))
+                    .getOrDefault(layer.getKey(), new HashSet<>());
+                for (final MarkerSet set : layer.getValue()) {
+                    assertEquals(ids, set.getMarkers().keySet(), "Cycle " + cycle + ": " + layer.getKey()
+                        + " markers of world " + world.getKey() + " differ from the applied ones");
+                }
+            }
+        }
+    }
+
+    /**
+     * Every NPC marker shown on the maps must be at the current position of its NPC.
+     */
+    private void assertNpcMarkersFollow(int cycle) {
+        int followed = 0;
+        for (final Map<MarkerLayer, List<MarkerSet>> worldSets : sets.values()) {
+            for (final List<MarkerSet> layerSets : worldSets.values()) {
+                for (final MarkerSet set : layerSets) {
+                    for (final Map.Entry<String, Marker> entry : set.getMarkers().entrySet()) {
+                        final String id = entry.getKey();
+                        if (!id.startsWith("quests-npc-")) {
+                            continue;
+                        }
+                        final NpcLocator.Located l = fixtures.npcs.located.get(
+                            UUID.fromString(id.substring(id.length() - 36)));
+                        final Vector3d position = entry.getValue().getPosition();
+                        assertTrue(l != null && position.getX() == l.x && position.getY() == l.y
+                            && position.getZ() == l.z, "Cycle " + cycle + ": " + id + " did not follow its NPC");
+                        followed++;
+                    }
+                }
+            }
+        }
+        assertTrue(followed > 0, "Cycle " + cycle + ": no NPC markers shown");
+    }
+
+    private void assertWithinGrowth(String name, int baseline, int size) {
+        // Some slack for small fixtures, where a single replacement is a large share
+        final double limit = baseline * (1 + maxCacheGrowth) + 16;
+        assertTrue(size <= limit, name + " grew from " + baseline + " to " + size);
+    }
+
+    private UpdatePipeline pipeline(UpdateStats stats) {
+        final NpcResolver resolver = new NpcResolver();
+        resolver.register(fixtures.npcs);
+        return new UpdatePipeline(() -> config, resolver, fixtures.regions, stats, Logger.getLogger("soak"));
+    }
+
+    private static double option(String name, double fallback) {
+        final String value = System.getProperty("soak." + name);
+        return value != null ? Double.parseDouble(value) : fallback;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Stands in for the plugin: always ready, and the test runs the tick tasks itself.
+     */
+    private final class Host implements UpdateJob.Host {
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public Collection<? extends Quest> prepareCapture() {
+            return fixtures.quests;
+        }
+
+        @Override
+        public Runnable everyTick(Runnable task) {
+            tickTasks.add(task);
+            return () -> tickTasks.remove(task);
+        }
+    }
+}
@@ -12,7 +12,8 @@
 
 package org.browsit.bluemapquests;
 
-import java.util.Map.Entry;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
@@ -20,43 +21,57 @@ import org.bukkit.Bukkit;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 import org.bukkit.plugin.Plugin;
 
-@SuppressWarnings("deprecation")
+/**
+ * Reads region geometry from the installed WorldGuard version. Implementations live in the
+ * version specific modules and are registered as services.
+ */
 public abstract class AreaProvider {
 
     private static AreaProvider loaded;
+    private static boolean resolved;
+
+    /**
+     * @param worldGuardVersion version of the installed WorldGuard plugin
+     * @return true if this implementation works with that version
+     */
+    abstract boolean supports(String worldGuardVersion);
 
-    static {
+    /**
+     * Write the outline and vertical extent of a region into the buffer, replacing its contents.
+     *
+     * @return false if the region type is not supported
+     */
+    abstract boolean outline(ProtectedRegion region, OutlineBuffer out);
+
+    /**
+     * Find the implementation matching the installed WorldGuard. Only looked up on the first call.
+     *
+     * @return provider, or null if WorldGuard is not installed or not supported
+     */
+    static synchronized AreaProvider get() {
+        if (resolved) {
+            return loaded;
+        }
+        resolved = true;
         final Plugin worldGuard = Bukkit.getPluginManager().getPlugin("WorldGuard");
-        if (worldGuard != null) {
-            final String wgVersion = worldGuard.getDescription().getVersion();
-            try {
-                final String packageName = AreaProvider.class.getPackage().getName();
-                if (wgVersion.startsWith("6") || wgVersion.startsWith("5")) {
-                    loaded = (AreaProvider) Class.forName(packageName + ".AreaProvider_WG6").newInstance();
-                } else {
-                    loaded = (AreaProvider) Class.forName(packageName + ".AreaProvider_WG7").newInstance();
+        if (worldGuard == null) {
+            return null;
+        }
+        final String wgVersion = worldGuard.getDescription().getVersion();
+        try {
+            for (final AreaProvider provider : ServiceLoader.load(AreaProvider.class,
+                    AreaProvider.class.getClassLoader())) {
+                if (provider.supports(wgVersion)) {
+                    loaded = provider;
+                    return loaded;
                 }
-            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException exception) {
-                Bukkit.getLogger().log(Level.SEVERE, "BlueMapQuests could not find a valid AreaProvider implementation.");
             }
+        } catch (ServiceConfigurationError error) {
+            Bukkit.getLogger().log(Level.SEVERE, "BlueMapQuests could not load an AreaProvider implementation.",
+                error);
+            return null;
         }
-    }
-
-    abstract Entry<double[], double[]> get(ProtectedRegion region);
-
-    abstract double getLowerY(ProtectedRegion region);
-
-    abstract double getUpperY(ProtectedRegion region);
-
-    public static Entry<double[], double[]> getArea(ProtectedRegion region) {
-        return loaded.get(region);
-    }
-
-    public static double getMinY(ProtectedRegion region) {
-        return loaded.getLowerY(region);
-    }
-
-    public static double getMaxY(ProtectedRegion region) {
-        return loaded.getUpperY(region);
+        Bukkit.getLogger().log(Level.SEVERE, "BlueMapQuests could not find a valid AreaProvider implementation.");
+        return null;
     }
 }
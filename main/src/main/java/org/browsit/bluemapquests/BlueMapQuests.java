@@ -12,87 +12,81 @@
 
 package org.browsit.bluemapquests;
 
-import com.flowpowered.math.vector.Vector2d;
-import com.flowpowered.math.vector.Vector2i;
-import com.flowpowered.math.vector.Vector3d;
-import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 import de.bluecolored.bluemap.api.BlueMapAPI;
+import de.bluecolored.bluemap.api.BlueMapMap;
 import de.bluecolored.bluemap.api.BlueMapWorld;
 import de.bluecolored.bluemap.api.markers.*;
-import io.github.znetworkw.znpcservers.npc.NPC;
-import lol.pyr.znpcsplus.ZNPCsPlus;
-import lol.pyr.znpcsplus.api.NpcApi;
-import lol.pyr.znpcsplus.api.entity.EntityProperty;
-import lol.pyr.znpcsplus.api.npc.Npc;
-import lol.pyr.znpcsplus.api.npc.NpcEntry;
-import me.pikamug.quests.BukkitQuestsPlugin;
 import me.pikamug.quests.Quests;
 import me.pikamug.quests.dependencies.BukkitDependencies;
 import me.pikamug.quests.dependencies.reflect.worldguard.WorldGuardAPI;
 import me.pikamug.quests.quests.Quest;
-import me.pikamug.quests.quests.components.Stage;
-import net.citizensnpcs.api.CitizensPlugin;
-import net.citizensnpcs.api.npc.NPCRegistry;
+import net.citizensnpcs.api.event.CitizensReloadEvent;
+import net.citizensnpcs.api.event.NPCDespawnEvent;
+import net.citizensnpcs.api.event.NPCRemoveEvent;
+import net.citizensnpcs.api.event.NPCSpawnEvent;
+import net.citizensnpcs.api.event.NPCTeleportEvent;
 import org.bukkit.Bukkit;
-import org.bukkit.ChatColor;
-import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.entity.Entity;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.server.PluginEnableEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
-import java.awt.*;
 import java.io.*;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 
 public class BlueMapQuests extends JavaPlugin {
+    private static final long ACTIVATION_DELAY = 20L;
+    private static final String MARKER_CACHE = "markers.cache";
+
     @SuppressWarnings("unused")
     public static String uid = "%%__USER__%% | %%__RESOURCE__%% | %%__NONCE__%%";
 
     private Plugin blueMap;
-    private CitizensPlugin citizens;
-    private ZNPCsPlus znpcsLegacy;
-    private NpcApi znpcs;
+    private final NpcResolver npcResolver = new NpcResolver();
     private static WorldGuardAPI worldGuardApi = null;
-    private NPCRegistry registry;
+    private RegionCache regionCache;
     private Quests quests;
 
-    private String setId;
-    private String startIcon;
-    private String interactIcon;
-    private String killIcon;
-    private String deliveryIcon;
-    private int areaFillOpacity;
-    private Color areaFillColor;
-    private int areaLineWeight;
-    private int areaLineOpacity;
-    private Color areaLineColor;
-    private int cirFillOpacity;
-    private Color cirFillColor;
-    private int cirLineWeight;
-    private int cirLineOpacity;
-    private Color cirLineColor;
-    private String prefixStart;
-    private String prefixKillArea;
-    private String prefixReachArea;
-    private String prefixInteract;
-    private String prefixKill;
-    private String prefixDelivery;
-    private String prefixWgRegion;
-    private int renderHeight;
-    private int minimumDistance;
-    private int maximumDistance;
+    private volatile RenderConfig renderConfig;
+    // Removes icons the current render config no longer uses, the update job runs it once markers stopped using them
+    private Runnable iconCleanup;
     BlueMapAPI markerApi;
 
     private FileConfiguration cfg;
-    private HashMap<UUID, List<MarkerSet>> sets;
+    private Map<UUID, Map<MarkerLayer, List<MarkerSet>>> sets;
+    private MarkerSync sync;
+    private ForkJoinPool workers;
+    private final AtomicBoolean building = new AtomicBoolean();
+    private UpdateJob job;
+    private BukkitTask updateTask;
+    private BukkitTask flushTask;
+    private BukkitTask trackTask;
+    private final DirtyQueue dirty = new DirtyQueue();
+    private final UpdateStats stats = new UpdateStats();
+    private BukkitTask statsTask;
+    private boolean warmStart;
+    // Whether the cache on disk is at least as recent as the markers shown, only then it is preloaded
+    private boolean cacheCurrent = true;
+    private BukkitTask pendingActivation;
+    private Consumer<BlueMapAPI> enableListener;
+    private Consumer<BlueMapAPI> disableListener;
     private boolean reload = false;
 
     @Override
@@ -118,376 +112,439 @@ public class BlueMapQuests extends JavaPlugin {
         if (quests != null) {
             final BukkitDependencies depends = (BukkitDependencies) quests.getDependencies();
             if (depends.getCitizens() != null) {
-                citizens = depends.getCitizens();
-                if (citizens != null) {
-                    registry = citizens.getNPCRegistry();
-                }
+                npcResolver.register(new NpcLocator_Citizens(depends.getCitizens().getNPCRegistry()));
+                getServer().getPluginManager().registerEvents(new CitizensListener(), this);
             }
             if (depends.getZnpcsPlus() != null) {
-                znpcsLegacy = depends.getZnpcsPlus();
+                npcResolver.register(new NpcLocator_ZNPCsLegacy(depends::getZnpcsPlusUuids));
             }
             if (depends.getZnpcsPlusApi() != null) {
-                znpcs = depends.getZnpcsPlusApi();
+                npcResolver.register(new NpcLocator_ZNPCsPlus(depends.getZnpcsPlusApi()));
             }
             if (depends.getWorldGuardApi() != null) {
                 worldGuardApi = depends.getWorldGuardApi();
+                regionCache = new RegionCache(worldGuardApi);
             }
         }
 
         getServer().getPluginManager().registerEvents(new OurServerListener(), this);
+        getServer().getPluginManager().registerEvents(new WorldListener(), this);
+        final QuestsCommand questsCommand = new QuestsCommand(stats, this::reloadRenderConfig);
+        getCommand("bmquests").setExecutor(questsCommand);
+        getCommand("bmquests").setTabCompleter(questsCommand);
         if (blueMap.isEnabled() && quests.isEnabled()) {
             activate();
         }
     }
 
+    @Override
+    public void onDisable() {
+        if (pendingActivation != null) {
+            pendingActivation.cancel();
+            pendingActivation = null;
+        }
+        if (enableListener != null) {
+            BlueMapAPI.unregisterListener(enableListener);
+            BlueMapAPI.unregisterListener(disableListener);
+            enableListener = null;
+            disableListener = null;
+        }
+        cancelUpdateTask();
+        saveMarkerCache();
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+        // Don't leave our markers behind in BlueMap if only this plugin goes away
+        if (renderConfig != null) {
+            BlueMapAPI.getInstance().ifPresent(api -> api.getMaps().forEach(BlueMapQuests::removeSets));
+        }
+        sets = null;
+        sync = null;
+    }
+
     private void activate() {
-        BlueMapAPI.onEnable(api -> {
-            try {
-                // Get markers API
-                markerApi = api;
-                if (markerApi == null) {
-                    getLogger().severe("Error loading BlueMap marker API!");
-                    return;
-                }
-                // Load configuration
-                if (reload) {
-                    this.reloadConfig();
-                } else {
-                    reload = true;
-                }
-                cfg = getConfig();
-                cfg.options().copyDefaults(true);
-                this.saveConfig();
-
-                // Add marker set (make it transient)
-                setId = "bluemap-quests.set";
-                sets = new HashMap<>();
-                Bukkit.getWorlds().forEach(world -> {
-                    Optional<BlueMapWorld> blueWorldOptional = api.getWorld(world);
-                    if (blueWorldOptional.isPresent()) {
-                        BlueMapWorld blueWorld = blueWorldOptional.get();
-                        List<MarkerSet> worldSets = new ArrayList<>();
-
-                        blueWorld.getMaps().forEach(map -> {
-                            MarkerSet set = map.getMarkerSets().get(cfg.getString("label.name"));
-
-                            if (set == null) {
-                                // Load marker set
-                                set = MarkerSet.builder().label(cfg.getString("label.name", "Quests")).build();
-                                map.getMarkerSets().put(setId, set);
-                            }
-                            set.setDefaultHidden(cfg.getBoolean("layer.hide-by-default", false));
-
-                            worldSets.add(set);
-                        });
-                        sets.put(world.getUID(), worldSets);
-                    }
-                });
-
-                // Setup variables
-                final String startPath = "icons.start-NPC";
-                final String interactPath = "icons.interact-NPC";
-                final String killPath = "icons.kill-NPC";
-                final String deliveryPath = "icons.delivery-NPC";
-                startIcon = createImage("markers/" + cfg.getString(startPath) + ".png", api, startPath);
-                interactIcon = createImage("markers/" + cfg.getString(interactPath) + ".png", api, interactPath);
-                killIcon = createImage("markers/" + cfg.getString(killPath) + ".png", api, killPath);
-                deliveryIcon = createImage("markers/" + cfg.getString(deliveryPath) + ".png", api, deliveryPath);
-                areaFillOpacity = (int) (cfg.getDouble("area.fill-style.opacity", 0.35) * 255);
-                areaFillColor = Color.decode(cfg.getString("area.fill-style.color", "0xFF0000"));
-                areaLineWeight = cfg.getInt("area.line-style.weight", 5);
-                areaLineOpacity = (int) (cfg.getDouble("area.line-style.opacity", 0.8) * 255);
-                areaLineColor = Color.decode(cfg.getString("area.line-style.color", "0xFF0000"));
-                cirFillOpacity = (int) (cfg.getDouble("circle.fill-style.opacity", 0.35) * 255);
-                cirFillColor = Color.decode(cfg.getString("circle.fill-style.color", "0xFF9999"));
-                cirLineWeight = cfg.getInt("circle.line-style.weight", 5);
-                cirLineOpacity = (int) (cfg.getDouble("circle.line-style.opacity", 0.8) * 255);
-                cirLineColor = Color.decode(cfg.getString("circle.line-style.color", "0xFF9999"));
-                prefixStart = cfg.getString("prefixes.start", "Start");
-                prefixKillArea = cfg.getString("prefixes.kill-area", "Kill Area");
-                prefixReachArea = cfg.getString("prefixes.reach-area", "Reach Area");
-                prefixInteract = cfg.getString("prefixes.interact", "Interact");
-                prefixKill = cfg.getString("prefixes.kill", "Kill");
-                prefixDelivery = cfg.getString("prefixes.delivery", "Delivery");
-                prefixWgRegion = cfg.getString("prefixes.wg-region", "WG Region");
-                renderHeight = cfg.getInt("render.height", 63);
-                minimumDistance = cfg.getInt("render.min-distance", 10);
-                maximumDistance = cfg.getInt("render.max-distance", 500);
-
-                // Setup update job based on period
-                int per = cfg.getInt("update.period", 300);
-                if (per < 15) {
-                    per = 15;
-                }
+        // Dependencies tend to enable in bursts, so wait until they settle and activate once
+        if (pendingActivation != null) {
+            pendingActivation.cancel();
+        }
+        pendingActivation = getServer().getScheduler().runTaskLater(this, () -> {
+            pendingActivation = null;
+            if (enableListener == null) {
+                enableListener = onServerThread(this::enable);
+                disableListener = onServerThread(this::disable);
+                BlueMapAPI.onEnable(enableListener);
+                BlueMapAPI.onDisable(disableListener);
+            } else {
+                BlueMapAPI.getInstance().ifPresent(this::enable);
+            }
+        }, ACTIVATION_DELAY);
+    }
 
-                getServer().getScheduler().scheduleSyncRepeatingTask(this, new UpdateJob(), 40, per);
-                getLogger().info("v" + this.getDescription().getVersion() + " is activated");
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * BlueMap calls its listeners on its own thread on reloads, while the update job must only be
+     * touched from the server thread.
+     */
+    private Consumer<BlueMapAPI> onServerThread(Consumer<BlueMapAPI> listener) {
+        return api -> {
+            if (Bukkit.isPrimaryThread()) {
+                listener.accept(api);
+            } else if (isEnabled()) {
+                getServer().getScheduler().runTask(this, () -> listener.accept(api));
             }
-        });
+        };
     }
 
-    public String createImage(String imagePath, BlueMapAPI api, String iconName) throws IOException {
-        final InputStream inputStream = getResource(imagePath);
-        if (inputStream == null) {
-            getLogger().severe("Invalid " + imagePath + " icon path " + imagePath);
-            return null;
+    private synchronized void enable(BlueMapAPI api) {
+        // Get markers API
+        markerApi = api;
+        if (markerApi == null) {
+            getLogger().severe("Error loading BlueMap marker API!");
+            return;
+        }
+        // Load configuration
+        if (reload) {
+            this.reloadConfig();
+        } else {
+            reload = true;
+        }
+        cfg = getConfig();
+        cfg.options().copyDefaults(true);
+        RenderConfig.migrate(cfg, getLogger());
+        this.saveConfig();
+        renderConfig = compileRenderConfig(api);
+
+        // Add marker sets (make them transient), worlds loaded later get theirs when they load
+        sets = new ConcurrentHashMap<>();
+        if (workers == null) {
+            workers = createWorkers(Math.max(1, cfg.getInt("update.worker-threads", 2)));
         }
+        sync = new MarkerSync(sets, stats, workers);
+        Bukkit.getWorlds().forEach(this::addWorld);
+        warmStart = cfg.getBoolean("update.warm-start", true);
+        if (warmStart && cacheCurrent) {
+            loadMarkerCache();
+        }
+        // Activating again without a save in between would replace live markers with older ones
+        cacheCurrent = false;
 
-        // Prepare destination inside webroot
-        String toPathRelative = "assets/bmquests/" + iconName + ".png";
-        File target = new File(api.getWebApp().getWebRoot().toString(), toPathRelative);
-        if (!target.exists()) {
-            target.getParentFile().mkdirs();
+        // Setup update job based on period
+        int per = cfg.getInt("update.period", 300);
+        if (per < 15) {
+            per = 15;
         }
 
-        // Perform copy from resource to webroot
-        try (OutputStream outputStream = new FileOutputStream(target.toPath().toString(), false)) {
+        final int eventDelay = Math.max(1, cfg.getInt("update.event-delay", 20));
+        final int eventBatchSize = Math.max(1, cfg.getInt("update.event-batch-size", 256));
+        final long tickBudget = (long) (Math.max(0, cfg.getDouble("update.tick-budget-ms", 2)) * 1_000_000);
+
+        cancelUpdateTask();
+        final UpdatePipeline pipeline = new UpdatePipeline(() -> renderConfig, npcResolver, regionCache, stats,
+            getLogger());
+        job = new UpdateJob(new ServerHost(), pipeline, sync, dirty, stats, workers, building, tickBudget,
+            eventBatchSize, getLogger());
+        job.afterNextUpdate(iconCleanup);
+        updateTask = getServer().getScheduler().runTaskTimer(this, job, 40, per);
+        flushTask = getServer().getScheduler().runTaskTimer(this, job::flush, 40 + eventDelay, eventDelay);
+        final int trackInterval = renderConfig.trackingInterval;
+        if (trackInterval > 0) {
+            trackTask = getServer().getScheduler().runTaskTimer(this, job::track, 40 + trackInterval, trackInterval);
+        }
+        final int dumpInterval = cfg.getInt("stats.dump-interval", 0);
+        if (dumpInterval > 0) {
+            final boolean json = "json".equalsIgnoreCase(cfg.getString("stats.dump-format", "csv"));
+            final long ticks = dumpInterval * 20L;
+            statsTask = getServer().getScheduler().runTaskTimerAsynchronously(this, () -> dumpStats(json),
+                ticks, ticks);
+        }
+        getLogger().info("v" + this.getDescription().getVersion() + " is activated");
+    }
 
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+    /**
+     * Create the marker sets of a world unless it already has them. Runs on the server thread.
+     */
+    private synchronized void addWorld(World world) {
+        final BlueMapAPI api = markerApi;
+        if (api == null || sets == null || sets.containsKey(world.getUID())) {
+            return;
+        }
+        final Optional<BlueMapWorld> blueWorld = api.getWorld(world);
+        if (!blueWorld.isPresent()) {
+            // Not rendered, or not registered by BlueMap yet, retried before the next full update
+            return;
+        }
+        final Map<MarkerLayer, List<MarkerSet>> worldSets = new EnumMap<>(MarkerLayer.class);
+        blueWorld.get().getMaps().forEach(map -> {
+            for (final MarkerLayer layer : MarkerLayer.values()) {
+                if (!renderConfig.isEnabled(layer)) {
+                    // Disabled layers don't even get an empty entry in the layer list
+                    map.getMarkerSets().remove(layer.setId);
+                    continue;
+                }
+                MarkerSet set = map.getMarkerSets().get(layer.setId);
+
+                if (set == null) {
+                    // Load marker set
+                    set = MarkerSet.builder().label(renderConfig.layerLabels[layer.ordinal()]).build();
+                    map.getMarkerSets().put(layer.setId, set);
+                }
+                // Sets from an earlier activation are reused, leftovers are swept by the first sync
+                styleSet(set, layer);
+
+                worldSets.computeIfAbsent(layer, l -> new ArrayList<>()).add(set);
             }
+        });
+        sets.put(world.getUID(), worldSets);
+        sync.addWorld(world.getUID(), worldSets);
+    }
 
-        } catch (IOException e) {
-            getLogger().severe("Error copying " + imagePath + " icon to " + toPathRelative);
-            e.printStackTrace();
+    /**
+     * Drop the marker sets of a world along with its markers. Runs on the server thread.
+     */
+    private synchronized void removeWorld(World world) {
+        if (sets == null || sets.remove(world.getUID()) == null) {
+            return;
         }
+        sync.removeWorld(world.getUID());
+        markerApi.getWorld(world).ifPresent(blueWorld -> blueWorld.getMaps().forEach(BlueMapQuests::removeSets));
+    }
 
-        // Return a relative path for further usage
-        return toPathRelative;
+    private void styleSet(MarkerSet set, MarkerLayer layer) {
+        set.setLabel(renderConfig.layerLabels[layer.ordinal()]);
+        set.setDefaultHidden(renderConfig.layerHidden[layer.ordinal()]);
     }
 
-    private class UpdateJob implements Runnable {
-        @Override
-        public void run() {
-            BlueMapAPI.getInstance().ifPresent(api -> {
-                if (sets != null) {
-                    for (final Quest q : quests.getLoadedQuests()) {
-                        if (citizens != null && q.getNpcStart() != null) {
-                            npcMarker(q.getNpcStart(), prefixStart, startIcon);
-                        }
-                        for (final Stage s : q.getStages()) {
-                            int killIndex = 0;
-                            for (final Object obj : s.getLocationsToKillWithin()) {
-                                final Location location = (Location) obj;
-                                final int radius = s.getRadiiToKillWithin().get(killIndex);
-                                final String name = s.getKillNames().get(killIndex);
-                                cirMarker(location, radius, name, prefixKillArea);
-                                killIndex++;
-                            }
-                            int reachIndex = 0;
-                            for (final Object obj : s.getLocationsToReach()) {
-                                final Location location = (Location) obj;
-                                final int radius = s.getRadiiToReachWithin().get(reachIndex);
-                                final String name = s.getLocationNames().get(reachIndex);
-                                cirMarker(location, radius, name, prefixReachArea);
-                                reachIndex++;
-                            }
-                            if (citizens != null) {
-                                for (final UUID i : s.getNpcsToInteract()) {
-                                    npcMarker(i, prefixInteract, interactIcon);
-                                }
-                                for (final UUID i : s.getNpcsToKill()) {
-                                    npcMarker(i, prefixKill, killIcon);
-                                }
-                                for (final UUID i : s.getItemDeliveryTargets()) {
-                                    npcMarker(i, prefixDelivery, deliveryIcon);
-                                }
-                            }
-                            if (worldGuardApi != null) {
-                                if (q.getRegionStart() != null) {
-                                    final String r = q.getRegionStart();
-                                    for (final World world : getServer().getWorlds()) {
-                                        try {
-                                            if (worldGuardApi.getRegionManager(world) != null) {
-                                                if (worldGuardApi.getRegionManager(world).hasRegion(r)) {
-                                                    final ProtectedRegion pr = worldGuardApi.getRegionManager(world)
-                                                        .getRegion(r);
-                                                    if (pr != null) {
-                                                        areaMarker(pr, prefixWgRegion, world);
-                                                    }
-                                                }
-                                            }
-                                        } catch (NoSuchMethodError e) {
-                                            getLogger().severe("Unsupported version of WorldGuard");
-                                            e.printStackTrace();
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            });
-        }
-
-        public void npcMarker(UUID uuid, String labelPrefix, String icon) {
-            Entity entity;
-            Location l = null;
-            String id = null;
-            String name = "null";
-            if (citizens != null) {
-                final net.citizensnpcs.api.npc.NPC n = registry.getByUniqueId(uuid);
-                if (n != null) {
-                    entity = n.getEntity();
-                    l = n.getStoredLocation();
-                    if (l == null && entity != null) {
-                        l = entity.getLocation();
-                    }
-                    id = "quests-npc-" + +n.getId();
-                    name = n.getFullName();
-                }
-            }
-            if (znpcsLegacy != null) {
-                if (((BukkitQuestsPlugin) quests).getDependencies().getZnpcsPlusUuids().contains(uuid)) {
-                    final Optional<NPC> opt = NPC.all().stream().filter(npc1 -> npc1.getUUID().equals(uuid)).findAny();
-                    if (opt.isPresent()) {
-                        final NPC n = opt.get();
-                        l = n.getLocation();
-                        id = "quests-npc-" + n.getEntityID();
-                        if (n.getBukkitEntity() != null) {
-                            entity = (Entity) n.getBukkitEntity();
-                            if (entity.getCustomName() != null) {
-                                name = entity.getCustomName();
-                            } else {
-                                name = n.getNpcPojo().getHologramLines().get(0);
-                            }
-                        }
+    private static void removeSets(BlueMapMap map) {
+        for (final MarkerLayer layer : MarkerLayer.values()) {
+            map.getMarkerSets().remove(layer.setId);
+        }
+    }
+
+    /**
+     * Install the configured icons and compile the render config from the loaded configuration.
+     * Icons that are no longer configured are removed after the next full update.
+     */
+    private RenderConfig compileRenderConfig(BlueMapAPI api) {
+        final Path webRoot = api.getWebApp().getWebRoot();
+        final IconAssets icons = new IconAssets(new File(getDataFolder(), "icons"),
+            new File(getDataFolder(), "installed-icons.txt"), this::getResource, getLogger());
+        final String[] roleIcons = {
+            installIcon(icons, webRoot, UpdatePipeline.NpcRole.START, "icons.start-NPC", "bookshelf"),
+            installIcon(icons, webRoot, UpdatePipeline.NpcRole.INTERACT, "icons.interact-NPC", "comment"),
+            installIcon(icons, webRoot, UpdatePipeline.NpcRole.KILL, "icons.kill-NPC", "skull"),
+            installIcon(icons, webRoot, UpdatePipeline.NpcRole.DELIVERY, "icons.delivery-NPC", "basket")
+        };
+        iconCleanup = () -> icons.removeUnused(webRoot, renderConfig.roleIcons);
+        return new RenderConfig(cfg, roleIcons);
+    }
+
+    /**
+     * Install the configured icon of a role, falling back to the icon used so far or else the
+     * bundled default.
+     */
+    private String installIcon(IconAssets icons, Path webRoot, UpdatePipeline.NpcRole role, String path,
+                               String defaultName) {
+        final String name = cfg.getString(path, defaultName);
+        final String previous = renderConfig != null ? renderConfig.roleIcons[role.ordinal()] : null;
+        final String icon = icons.install(webRoot, name, previous);
+        if (icon == null && !name.equals(defaultName)) {
+            return icons.install(webRoot, defaultName, null);
+        }
+        return icon;
+    }
+
+    /**
+     * Re-read the configuration and restyle the markers without restarting the update job. The
+     * next cycle rebuilds every marker, but only those whose spec changed are sent to BlueMap.
+     *
+     * @return false if the plugin is not active
+     */
+    private synchronized boolean reloadRenderConfig() {
+        if (markerApi == null || sets == null) {
+            return false;
+        }
+        reloadConfig();
+        cfg = getConfig();
+        if (RenderConfig.migrate(cfg, getLogger())) {
+            saveConfig();
+        }
+        final RenderConfig previous = renderConfig;
+        renderConfig = compileRenderConfig(markerApi);
+        job.afterNextUpdate(iconCleanup);
+        if (renderConfig.hasSameLayers(previous)) {
+            for (final Map<MarkerLayer, List<MarkerSet>> worldSets : sets.values()) {
+                for (final Map.Entry<MarkerLayer, List<MarkerSet>> entry : worldSets.entrySet()) {
+                    for (final MarkerSet set : entry.getValue()) {
+                        styleSet(set, entry.getKey());
                     }
                 }
             }
-            if (znpcs != null) {
-                final NpcApi npcApi = ((BukkitQuestsPlugin) quests).getDependencies().getZnpcsPlusApi();
-                final NpcEntry entry = npcApi.getNpcRegistry().getByUuid(uuid);
-                if (entry != null) {
-                    final Npc znpc = entry.getNpc();
-                    l = znpc.getLocation().toBukkitLocation(znpc.getWorld());
-                    id = "quests-npc-" + entry.getId();
-                    EntityProperty<String> displayNameProperty = npcApi.getPropertyRegistry().getByName("display_name", String.class);
-                    if (displayNameProperty != null) {
-                        if (znpc.hasProperty(displayNameProperty)) {
-                            name = znpc.getProperty(displayNameProperty);
-                        }
-                    }
+        } else {
+            // Layers were switched on or off, set up the marker sets of every world again
+            for (final UUID uid : new ArrayList<>(sets.keySet())) {
+                final World world = Bukkit.getWorld(uid);
+                if (world != null) {
+                    removeWorld(world);
+                    addWorld(world);
                 }
             }
-            if (l != null && l.getWorld() != null) {
-                // Copy final variables for lambda
-                String finalId1 = id;
-                Location finalL = l;
-                String finalName1 = name;
-
-                // Add marker to sets
-                sets.get(l.getWorld().getUID()).forEach(set -> {
-                    if (set.getMarkers().containsKey(finalId1)) {
-                        final Marker m = set.get(finalId1);
-                        final String label = m.getLabel();
-                        if (!label.contains(labelPrefix)) {
-                            m.setLabel(label.replace("NPC:", "/ " + labelPrefix + " NPC:"));
-                        }
-                        m.setPosition(new Vector3d(finalL.getX(), finalL.getY(), finalL.getZ()));
-                    } else {
-                        if (BlueMapAPI.getInstance().isPresent()) {
-                            final Location finalLoc = finalL;
-                            final String finalName = finalName1;
-                            final String finalId = finalId1;
-                            BlueMapAPI.getInstance().get().getWorld(finalL.getWorld().getUID()).ifPresent(blueWorld -> blueWorld.getMaps().forEach(map -> {
-                                final Vector3d warpMarkerPos = new Vector3d(finalLoc.getX(), finalLoc.getY(), finalLoc.getZ());
-                                final POIMarker warpMarker = POIMarker.builder()
-                                    .label("Quest " + labelPrefix + " NPC: " + ChatColor.stripColor(finalName))
-                                    .position(warpMarkerPos)
-                                    .icon(icon, 0, 0)
-                                    .anchor(new Vector2i(16, 16))
-                                    .build();
-                                set.put(finalId, warpMarker);
-                                defineDistances(warpMarker, minimumDistance, maximumDistance);
-                            }));
-                        }
-                    }
-                });
-            }
         }
+        dirty.markAll();
+        return true;
+    }
 
-        public void cirMarker(Location l, double radius, String name, String labelPrefix) {
-            final String id = "quests-loc-" + name + "-" + l.getX() + "-" + l.getY() + "-" + l.getZ();
-            if (BlueMapAPI.getInstance().isPresent() && l.getWorld() != null) {
-                // Loop through all maps for this world
-                sets.get(l.getWorld().getUID()).forEach(set -> {
-                    if (set.getMarkers().containsKey(id)) {
-                        final ShapeMarker sm = (ShapeMarker) set.get(id);
-                        sm.setLabel("Quest " + labelPrefix + ": " + name);
-                        final de.bluecolored.bluemap.api.math.Color lineColor = new de.bluecolored.bluemap.api.math.Color(cirLineColor.getRed(), cirLineColor.getGreen(),
-                            cirLineColor.getBlue(), cirLineOpacity);
-                        sm.setLineColor(lineColor);
-                        sm.setLineWidth(cirLineWeight);
-                        final de.bluecolored.bluemap.api.math.Color fillColor = new de.bluecolored.bluemap.api.math.Color(cirFillColor.getRed(), cirFillColor.getGreen(),
-                            cirFillColor.getBlue(), cirFillOpacity);
-                        sm.setFillColor(fillColor);
-                        defineDistances(sm, minimumDistance, maximumDistance);
-                    } else {
-                        final de.bluecolored.bluemap.api.math.Shape circle = de.bluecolored.bluemap.api.math.Shape.createCircle(l.getX(), l.getZ(), radius, 16);
-                        ShapeMarker marker = ShapeMarker.builder()
-                            .shape(circle, (float) l.getY())
-                            .label("Quest " + labelPrefix + ": " + name)
-                            .build();
-                        set.put(id, marker);
-                    }
-                });
+    private synchronized void disable(BlueMapAPI api) {
+        cancelUpdateTask();
+        saveMarkerCache();
+        markerApi = null;
+        sets = null;
+        sync = null;
+    }
+
+    private void cancelUpdateTask() {
+        if (updateTask != null) {
+            updateTask.cancel();
+            updateTask = null;
+        }
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        if (trackTask != null) {
+            trackTask.cancel();
+            trackTask = null;
+        }
+        if (job != null) {
+            job.cancel();
+            job = null;
+        }
+        if (statsTask != null) {
+            statsTask.cancel();
+            statsTask = null;
+        }
+        dirty.clear();
+    }
+
+    private void loadMarkerCache() {
+        final File file = new File(getDataFolder(), MARKER_CACHE);
+        try {
+            final Map<String, MarkerSpec> cached = MarkerCache.read(file);
+            if (!cached.isEmpty()) {
+                sync.preload(cached);
             }
+        } catch (IOException | RuntimeException e) {
+            getLogger().log(Level.WARNING, "Ignoring unreadable " + MARKER_CACHE, e);
         }
+    }
 
-        public void areaMarker(ProtectedRegion pr, String labelPrefix, World world) {
-            final String id = "quests-reg-" + pr.getId();
-            if (BlueMapAPI.getInstance().isPresent() && world != null) {
-                // Loop through all maps for this world
-                sets.get(world.getUID()).forEach(set -> {
-                    if (set.getMarkers().containsKey(id)) {
-                        final ExtrudeMarker em = (ExtrudeMarker) set.get(id);
-                        em.setLabel("Quest " + labelPrefix + ": " + pr.getId());
-                        final de.bluecolored.bluemap.api.math.Color lineColor = new de.bluecolored.bluemap.api.math.Color(areaLineColor.getRed(), areaLineColor.getGreen(),
-                            areaLineColor.getBlue(), areaLineOpacity);
-                        em.setLineColor(lineColor);
-                        em.setLineWidth(areaLineWeight);
-                        final de.bluecolored.bluemap.api.math.Color fillColor = new de.bluecolored.bluemap.api.math.Color(areaFillColor.getRed(), areaFillColor.getGreen(),
-                            areaFillColor.getBlue(), areaFillOpacity);
-                        em.setFillColor(fillColor);
-                        em.setDepthTestEnabled(false);
-                        defineDistances(em, minimumDistance, maximumDistance);
-                    } else {
-                        final Map.Entry<double[], double[]> area = AreaProvider.getArea(pr);
-                        final Vector2d[] points = new Vector2d[area.getKey().length];
-                        for (int i = 0; i < area.getKey().length; i++) {
-                            points[i] = new Vector2d(area.getKey()[i], area.getValue()[i]);
-                        }
-                        final Vector3d _points = new Vector3d(points[0].getX(), renderHeight, points[0].getY());
-                        ExtrudeMarker marker = ExtrudeMarker.builder()
-                            .position(_points)
-                            .label("Quest " + labelPrefix + ": " + pr.getId())
-                            .shape(new de.bluecolored.bluemap.api.math.Shape.Builder().addPoints(points).build(), (float) AreaProvider.getMinY(pr), (float) AreaProvider.getMaxY(pr))
-                            .build();
-                        set.put(id, marker);
-                    }
-                });
+    private void saveMarkerCache() {
+        // Only save once a full update ran, otherwise the cache on disk is at least as recent
+        if (!warmStart || sync == null || sync.getGeneration() == 0) {
+            return;
+        }
+        try {
+            MarkerCache.write(new File(getDataFolder(), MARKER_CACHE), sync.getApplied());
+            cacheCurrent = true;
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Could not write " + MARKER_CACHE, e);
+        }
+    }
+
+    /**
+     * Write the current stats to the data folder, appending a row to stats.csv or replacing
+     * stats.json.
+     */
+    private void dumpStats(boolean json) {
+        final UpdateStats.Snapshot snapshot = stats.snapshot();
+        final long time = System.currentTimeMillis();
+        final File target = new File(getDataFolder(), json ? "stats.json" : "stats.csv");
+        final boolean header = !json && !target.exists();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(target, !json), "UTF-8")) {
+            if (header) {
+                writer.write(UpdateStats.Snapshot.csvHeader());
+                writer.write('\n');
             }
+            writer.write(json ? snapshot.json(time) : snapshot.csvRow(time));
+            writer.write('\n');
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Could not write " + target.getName(), e);
         }
     }
 
-    private void defineDistances(DistanceRangedMarker drm, double minDistance, double maxDistance) {
-        if (minDistance >= 0) {
-            drm.setMinDistance(minDistance);
+    private class ServerHost implements UpdateJob.Host {
+        @Override
+        public boolean isReady() {
+            return sets != null && sync != null && workers != null && BlueMapAPI.getInstance().isPresent();
+        }
+
+        @Override
+        public Collection<? extends Quest> prepareCapture() {
+            // Pick up worlds BlueMap registered after they were loaded
+            Bukkit.getWorlds().forEach(BlueMapQuests.this::addWorld);
+            return quests.getLoadedQuests();
         }
-        if (maxDistance > 0 && maxDistance > minDistance) {
-            drm.setMaxDistance(maxDistance);
+
+        @Override
+        public Runnable everyTick(Runnable task) {
+            return getServer().getScheduler().runTaskTimer(BlueMapQuests.this, task, 1, 1)::cancel;
         }
     }
 
+    private static ForkJoinPool createWorkers(int threads) {
+        // Runs the async phase of each cycle, which fans out into one task per world
+        final AtomicInteger count = new AtomicInteger();
+        return new ForkJoinPool(threads, pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("BlueMapQuests-Worker-" + count.incrementAndGet());
+            return thread;
+        }, null, false);
+    }
+
     public WorldGuardAPI getWorldGuardApi() {
         return worldGuardApi;
     }
 
+    private class CitizensListener implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onNpcSpawn(NPCSpawnEvent event) {
+            dirty.markNpc(event.getNPC().getUniqueId());
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onNpcDespawn(NPCDespawnEvent event) {
+            dirty.markNpc(event.getNPC().getUniqueId());
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onNpcTeleport(NPCTeleportEvent event) {
+            dirty.markNpc(event.getNPC().getUniqueId());
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onNpcRemove(NPCRemoveEvent event) {
+            dirty.markNpc(event.getNPC().getUniqueId());
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onCitizensReload(CitizensReloadEvent event) {
+            dirty.markAll();
+        }
+    }
+
+    private class WorldListener implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onWorldLoad(WorldLoadEvent event) {
+            addWorld(event.getWorld());
+            // Show the markers of the new world without waiting for the next full update
+            dirty.markAll();
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+        public void onWorldUnload(WorldUnloadEvent event) {
+            removeWorld(event.getWorld());
+        }
+    }
+
     private class OurServerListener implements Listener {
         @EventHandler(priority = EventPriority.MONITOR)
         public void onPluginEnable(PluginEnableEvent event) {
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import com.flowpowered.math.vector.Vector2d;
+import de.bluecolored.bluemap.api.math.Shape;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circle outlines with a vertex count that follows the radius. Unit circle tables are computed
+ * once per vertex count and only scaled and translated for each circle.
+ */
+final class CircleGeometry {
+    // Interleaved cos/sin of each vertex angle, by vertex count
+    private static final Map<Integer, double[]> UNIT_CIRCLES = new ConcurrentHashMap<>();
+
+    private CircleGeometry() {
+    }
+
+    /**
+     * Number of vertices needed to keep the outline within the tolerance of the true circle.
+     *
+     * @param radius circle radius in blocks
+     * @param tolerance maximum distance in blocks between an edge and the true circle
+     * @param min lower bound of the vertex count
+     * @param max upper bound of the vertex count
+     */
+    static int segments(double radius, double tolerance, int min, int max) {
+        int segments = max;
+        if (tolerance >= radius) {
+            segments = min;
+        } else if (tolerance > 0) {
+            // An edge spanning angle a deviates from the circle by r * (1 - cos(a / 2))
+            segments = (int) Math.ceil(Math.PI / Math.acos(1 - tolerance / radius));
+        }
+        // Multiples of four keep the outline symmetric on both axes
+        segments = (segments + 3) & ~3;
+        return Math.max(min, Math.min(max, segments));
+    }
+
+    static Shape circle(double x, double z, double radius, int segments) {
+        final double[] unit = UNIT_CIRCLES.computeIfAbsent(segments, CircleGeometry::unitCircle);
+        final Vector2d[] points = new Vector2d[segments];
+        for (int i = 0; i < segments; i++) {
+            points[i] = new Vector2d(x + unit[2 * i] * radius, z + unit[2 * i + 1] * radius);
+        }
+        return new Shape(points);
+    }
+
+    private static double[] unitCircle(int segments) {
+        final double[] unit = new double[2 * segments];
+        for (int i = 0; i < segments; i++) {
+            final double angle = 2 * Math.PI * i / segments;
+            unit[2 * i] = Math.cos(angle);
+            unit[2 * i + 1] = Math.sin(angle);
+        }
+        return unit;
+    }
+}
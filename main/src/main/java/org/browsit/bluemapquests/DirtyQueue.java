@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects what changed between update cycles. Repeated changes to the same NPC coalesce into
+ * one entry until the next flush.
+ */
+final class DirtyQueue {
+    private final Set<UUID> npcs = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean all = new AtomicBoolean();
+
+    void markNpc(UUID uuid) {
+        npcs.add(uuid);
+    }
+
+    /**
+     * Request a full update, e.g. after an NPC plugin reloaded its data.
+     */
+    void markAll() {
+        all.set(true);
+    }
+
+    boolean isEmpty() {
+        return !all.get() && npcs.isEmpty();
+    }
+
+    /**
+     * @return whether a full update was requested since the last call
+     */
+    boolean takeAll() {
+        return all.getAndSet(false);
+    }
+
+    /**
+     * Remove and return up to {@code max} dirty NPCs.
+     */
+    Set<UUID> takeNpcs(int max) {
+        final Set<UUID> batch = new HashSet<>();
+        final Iterator<UUID> it = npcs.iterator();
+        while (it.hasNext() && batch.size() < max) {
+            batch.add(it.next());
+            it.remove();
+        }
+        return batch;
+    }
+
+    void clear() {
+        all.set(false);
+        npcs.clear();
+    }
+}
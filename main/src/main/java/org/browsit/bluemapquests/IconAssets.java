@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Installs marker icons into the BlueMap webroot under a name derived from their content.
+ * An icon that is already there is never written again, and changed icons get a new name so
+ * browsers do not keep showing a cached old one. Icons this plugin wrote are listed in a manifest,
+ * since other servers sharing the webroot may have installed icons next to them.
+ */
+final class IconAssets {
+    static final String DIRECTORY = "assets/bmquests/";
+    private static final Pattern HASHED = Pattern.compile("[0-9a-f]{16}\\.png");
+    // Instances of earlier configurations may still clean up while a new one installs
+    private static final Object MANIFEST_LOCK = new Object();
+
+    private final File customIcons;
+    private final File manifest;
+    private final Function<String, InputStream> resources;
+    private final Logger logger;
+    private final Set<String> installed = new HashSet<>();
+
+    /**
+     * @param customIcons folder with icons that override or add to the bundled ones
+     * @param manifest file listing the icons this plugin wrote to the webroot
+     * @param resources opens bundled resources by path
+     */
+    IconAssets(File customIcons, File manifest, Function<String, InputStream> resources, Logger logger) {
+        this.customIcons = customIcons;
+        this.manifest = manifest;
+        this.resources = resources;
+        this.logger = logger;
+    }
+
+    /**
+     * @param webRoot BlueMap webroot
+     * @param name icon name without extension, looked up in the custom icon folder first
+     * @param fallback icon path to keep using if this icon can't be installed, or null
+     * @return icon path relative to the webroot, or the fallback if the icon could not be installed
+     */
+    String install(Path webRoot, String name, String fallback) {
+        final byte[] content;
+        try {
+            content = read(name);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not read icon " + name, e);
+            return keep(fallback);
+        }
+        if (content == null) {
+            logger.severe("Invalid icon " + name + ", no such file in " + customIcons + " or the plugin jar");
+            return keep(fallback);
+        }
+        final String relative = DIRECTORY + hash(content) + ".png";
+        final Path target = webRoot.resolve(relative);
+        if (Files.isRegularFile(target)) {
+            installed.add(target.getFileName().toString());
+            return relative;
+        }
+        Path temp = null;
+        try {
+            Files.createDirectories(target.getParent());
+            // Write next to the target and move it over, so BlueMap never serves half an icon
+            temp = Files.createTempFile(target.getParent(), "icon", ".tmp");
+            Files.write(temp, content);
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // Common on network shares, a plain move is the best these can do
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error copying icon " + name + " to " + relative, e);
+            return keep(fallback);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not delete " + temp, e);
+                }
+            }
+        }
+        final String fileName = target.getFileName().toString();
+        installed.add(fileName);
+        synchronized (MANIFEST_LOCK) {
+            final Set<String> owned = readManifest();
+            if (owned.add(fileName)) {
+                writeManifest(owned);
+            }
+        }
+        return relative;
+    }
+
+    /**
+     * Keep an icon installed earlier from being removed as unused.
+     */
+    private String keep(String relative) {
+        if (relative != null) {
+            installed.add(relative.substring(relative.lastIndexOf('/') + 1));
+        }
+        return relative;
+    }
+
+    /**
+     * Delete icons this plugin wrote for an earlier configuration that are no longer in use.
+     * Icons it did not write are left alone.
+     *
+     * @param inUse further icon paths to keep, e.g. of a configuration loaded since, may contain nulls
+     */
+    void removeUnused(Path webRoot, String[] inUse) {
+        for (final String relative : inUse) {
+            keep(relative);
+        }
+        final Path directory = webRoot.resolve(DIRECTORY);
+        synchronized (MANIFEST_LOCK) {
+            final Set<String> owned = readManifest();
+            final boolean changed = owned.removeIf(fileName -> {
+                if (installed.contains(fileName)) {
+                    return false;
+                }
+                try {
+                    Files.deleteIfExists(directory.resolve(fileName));
+                    return true;
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not delete unused icon " + fileName, e);
+                    return false;
+                }
+            });
+            if (changed) {
+                writeManifest(owned);
+            }
+        }
+    }
+
+    private Set<String> readManifest() {
+        final Set<String> owned = new HashSet<>();
+        if (!manifest.isFile()) {
+            return owned;
+        }
+        try {
+            for (final String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                // Anything else could point outside the icon directory
+                if (HASHED.matcher(line).matches()) {
+                    owned.add(line);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read " + manifest, e);
+        }
+        return owned;
+    }
+
+    private void writeManifest(Set<String> owned) {
+        try {
+            Files.write(manifest.toPath(), owned, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write " + manifest, e);
+        }
+    }
+
+    private byte[] read(String name) throws IOException {
+        final File custom = new File(customIcons, name + ".png");
+        if (custom.isFile()) {
+            return Files.readAllBytes(custom.toPath());
+        }
+        try (InputStream in = resources.apply("markers/" + name + ".png")) {
+            if (in == null) {
+                return null;
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            final StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16))
+                    .append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores the last applied markers in the data folder, so they can be shown immediately after a
+ * restart while the first update is still running.
+ */
+final class MarkerCache {
+    private static final int MAGIC = 0x424D5143;
+    private static final int VERSION = 3;
+
+    private MarkerCache() {
+    }
+
+    /**
+     * @return cached markers, or an empty map if there is no usable cache
+     */
+    static Map<String, MarkerSpec> read(File file) throws IOException {
+        final Map<String, MarkerSpec> specs = new HashMap<>();
+        if (!file.isFile()) {
+            return specs;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                // Written by another version, the first update rebuilds everything anyway
+                return specs;
+            }
+            final Map<MarkerStyle, MarkerStyle> styles = new HashMap<>();
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String id = in.readUTF();
+                specs.put(id, MarkerSpec.read(in, styles));
+            }
+        }
+        return specs;
+    }
+
+    static void write(File file, Map<String, MarkerSpec> specs) throws IOException {
+        // Write next to the cache and move it over, so a crash never leaves a truncated cache
+        final File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(temp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(specs.size());
+                for (final Map.Entry<String, MarkerSpec> entry : specs.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().write(out);
+                }
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                // Common on network shares, a plain move is the best these can do
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // Only left over if writing or moving failed, and must not hide why
+            temp.delete();
+        }
+    }
+}
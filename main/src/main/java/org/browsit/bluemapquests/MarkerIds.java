@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Hands out marker ids that only depend on what the marker represents, so they stay the same
+ * across cycles and restarts. Ids are computed once and then served from the cache.
+ */
+final class MarkerIds {
+    enum Objective { KILL_AREA, REACH_AREA }
+
+    // Ids of an NPC's markers by layer ordinal, NPC layers come first
+    private final Map<UUID, String[]> npcs = new HashMap<>();
+    private final Map<UUID, Map<String, String>> regions = new HashMap<>();
+    private final Map<String, String[][][]> objectives = new HashMap<>();
+
+    /**
+     * @param layer layer of one of the NPC's roles, an NPC has a marker in each
+     */
+    String npc(UUID uuid, MarkerLayer layer) {
+        final String[] layerIds = npcs.computeIfAbsent(uuid, u -> new String[UpdatePipeline.NpcRole.values().length]);
+        String id = layerIds[layer.ordinal()];
+        if (id == null) {
+            id = "quests-npc-" + layer.key + "-" + uuid;
+            layerIds[layer.ordinal()] = id;
+        }
+        return id;
+    }
+
+    /**
+     * @param world world defining the region, regions of different worlds may share an id
+     */
+    String region(UUID world, String regionId) {
+        final Map<String, String> worldIds = regions.computeIfAbsent(world, w -> new HashMap<>());
+        String id = worldIds.get(regionId);
+        if (id == null) {
+            id = "quests-reg-" + world + "-" + regionId;
+            worldIds.put(regionId, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param questId id of the quest owning the objective
+     * @param stage index of the stage within the quest
+     * @param type kind of objective
+     * @param index index of the objective within its stage and kind
+     */
+    String objective(String questId, int stage, Objective type, int index) {
+        String[][][] quest = objectives.get(questId);
+        if (quest == null || quest.length <= stage) {
+            final String[][][] grown = new String[stage + 1][][];
+            if (quest != null) {
+                System.arraycopy(quest, 0, grown, 0, quest.length);
+            }
+            quest = grown;
+            objectives.put(questId, quest);
+        }
+        if (quest[stage] == null) {
+            quest[stage] = new String[Objective.values().length][];
+        }
+        String[] ids = quest[stage][type.ordinal()];
+        if (ids == null || ids.length <= index) {
+            final String[] grown = new String[index + 1];
+            if (ids != null) {
+                System.arraycopy(ids, 0, grown, 0, ids.length);
+            }
+            ids = grown;
+            quest[stage][type.ordinal()] = ids;
+        }
+        if (ids[index] == null) {
+            ids[index] = "quests-loc-" + Long.toHexString(hash(questId, stage, type.ordinal(), index));
+        }
+        return ids[index];
+    }
+
+    /**
+     * Forget cached ids of quests that are no longer loaded.
+     */
+    void retainQuests(Set<String> questIds) {
+        objectives.keySet().retainAll(questIds);
+    }
+
+    /**
+     * Forget cached ids of NPCs that are no longer referenced by any quest.
+     */
+    void retainNpcs(Set<UUID> uuids) {
+        npcs.keySet().retainAll(uuids);
+    }
+
+    /**
+     * Forget cached ids of regions that are no longer referenced by any quest.
+     */
+    void retainRegions(Set<String> regionIds) {
+        regions.values().removeIf(worldIds -> {
+            worldIds.keySet().retainAll(regionIds);
+            return worldIds.isEmpty();
+        });
+    }
+
+    /**
+     * @return number of NPCs, regions and quests ids are cached for
+     */
+    int size() {
+        int size = npcs.size() + objectives.size();
+        for (final Map<String, String> worldIds : regions.values()) {
+            size += worldIds.size();
+        }
+        return size;
+    }
+
+    /**
+     * 64-bit FNV-1a over the quest id and objective coordinates.
+     */
+    static long hash(String questId, int stage, int type, int index) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < questId.length(); i++) {
+            h = (h ^ questId.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ stage) * 0x100000001b3L;
+        h = (h ^ type) * 0x100000001b3L;
+        h = (h ^ index) * 0x100000001b3L;
+        return h;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+/**
+ * Kind of quest objective a marker belongs to. Every layer is a marker set of its own, so that
+ * it can be toggled, hidden and refreshed separately.
+ */
+enum MarkerLayer {
+    // NPC layers come first, in the order of UpdatePipeline.NpcRole
+    START_NPC("start-npc", "Quest Start NPCs"),
+    INTERACT_NPC("interact-npc", "Quest Interact NPCs"),
+    KILL_NPC("kill-npc", "Quest Kill NPCs"),
+    DELIVERY_NPC("delivery-npc", "Quest Delivery NPCs"),
+    KILL_AREA("kill-area", "Quest Kill Areas"),
+    REACH_AREA("reach-area", "Quest Reach Areas"),
+    REGION("wg-region", "Quest WG Regions");
+
+    final String key;
+    final String defaultLabel;
+    final String setId;
+
+    MarkerLayer(String key, String defaultLabel) {
+        this.key = key;
+        this.defaultLabel = defaultLabel;
+        this.setId = "bluemap-quests." + key;
+    }
+
+    static MarkerLayer of(UpdatePipeline.NpcRole role) {
+        return values()[role.ordinal()];
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import com.flowpowered.math.vector.Vector2d;
+import com.flowpowered.math.vector.Vector2i;
+import com.flowpowered.math.vector.Vector3d;
+import de.bluecolored.bluemap.api.markers.DistanceRangedMarker;
+import de.bluecolored.bluemap.api.markers.ExtrudeMarker;
+import de.bluecolored.bluemap.api.markers.Marker;
+import de.bluecolored.bluemap.api.markers.POIMarker;
+import de.bluecolored.bluemap.api.markers.ShapeMarker;
+import de.bluecolored.bluemap.api.math.Shape;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Immutable description of a single marker as the update job wants it to be.
+ * Two specs are equal when the resulting BlueMap marker would be identical.
+ */
+final class MarkerSpec {
+    enum Type { POI, CIRCLE, EXTRUDE }
+
+    private final Type type;
+    private final MarkerLayer layer;
+    private final UUID world;
+    private final String label;
+    private final double x;
+    private final double y;
+    private final double z;
+    private final double radius;
+    private final int segments;
+    private final double[] pointsX;
+    private final double[] pointsZ;
+    private final float minY;
+    private final float maxY;
+    private final String icon;
+    private final MarkerStyle style;
+    private final double minDistance;
+    private final double maxDistance;
+    private final int hash;
+
+    private MarkerSpec(Type type, MarkerLayer layer, UUID world, String label, double x, double y, double z,
+                       double radius, int segments, double[] pointsX, double[] pointsZ, float minY, float maxY,
+                       String icon, MarkerStyle style, double minDistance, double maxDistance) {
+        this.type = type;
+        this.layer = layer;
+        this.world = world;
+        this.label = label;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.radius = radius;
+        this.segments = segments;
+        this.pointsX = pointsX;
+        this.pointsZ = pointsZ;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.icon = icon;
+        this.style = style;
+        this.minDistance = minDistance;
+        this.maxDistance = maxDistance;
+        int h = Objects.hash(type, layer, world, label, x, y, z, radius, segments, minY, maxY, icon, style,
+            minDistance, maxDistance);
+        h = 31 * h + Arrays.hashCode(pointsX);
+        h = 31 * h + Arrays.hashCode(pointsZ);
+        this.hash = h;
+    }
+
+    static MarkerSpec poi(MarkerLayer layer, UUID world, String label, double x, double y, double z, String icon,
+                          double minDistance, double maxDistance) {
+        return new MarkerSpec(Type.POI, layer, world, label, x, y, z, 0, 0, null, null, 0, 0, icon, null, minDistance,
+            maxDistance);
+    }
+
+    static MarkerSpec circle(MarkerLayer layer, UUID world, String label, double x, double y, double z, double radius,
+                             int segments, MarkerStyle style, double minDistance, double maxDistance) {
+        return new MarkerSpec(Type.CIRCLE, layer, world, label, x, y, z, radius, segments, null, null, 0, 0, null,
+            style, minDistance, maxDistance);
+    }
+
+    static MarkerSpec extrude(UUID world, String label, double[] pointsX, double[] pointsZ, double renderHeight,
+                              float minY, float maxY, MarkerStyle style, double minDistance, double maxDistance) {
+        // Extrusions are only used for regions
+        return new MarkerSpec(Type.EXTRUDE, MarkerLayer.REGION, world, label, pointsX[0], renderHeight, pointsZ[0],
+            0, 0, pointsX, pointsZ, minY, maxY, null, style, minDistance, maxDistance);
+    }
+
+    /**
+     * @return the same marker at another position in the same world
+     */
+    MarkerSpec moveTo(double x, double y, double z) {
+        return new MarkerSpec(type, layer, world, label, x, y, z, radius, segments, pointsX, pointsZ, minY, maxY, icon,
+            style, minDistance, maxDistance);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeByte(type.ordinal());
+        out.writeByte(layer.ordinal());
+        out.writeLong(world.getMostSignificantBits());
+        out.writeLong(world.getLeastSignificantBits());
+        writeString(out, label);
+        out.writeDouble(x);
+        out.writeDouble(y);
+        out.writeDouble(z);
+        out.writeDouble(radius);
+        out.writeInt(segments);
+        out.writeInt(pointsX != null ? pointsX.length : -1);
+        if (pointsX != null) {
+            for (int i = 0; i < pointsX.length; i++) {
+                out.writeDouble(pointsX[i]);
+                out.writeDouble(pointsZ[i]);
+            }
+        }
+        out.writeFloat(minY);
+        out.writeFloat(maxY);
+        out.writeBoolean(icon != null);
+        if (icon != null) {
+            writeString(out, icon);
+        }
+        out.writeBoolean(style != null);
+        if (style != null) {
+            style.write(out);
+        }
+        out.writeDouble(minDistance);
+        out.writeDouble(maxDistance);
+    }
+
+    /**
+     * @param styles styles read so far, so that specs sharing a style share the instance
+     */
+    static MarkerSpec read(DataInput in, Map<MarkerStyle, MarkerStyle> styles) throws IOException {
+        final int ordinal = in.readUnsignedByte();
+        if (ordinal >= Type.values().length) {
+            throw new IOException("Unknown marker type " + ordinal);
+        }
+        final Type type = Type.values()[ordinal];
+        final int layerOrdinal = in.readUnsignedByte();
+        if (layerOrdinal >= MarkerLayer.values().length) {
+            throw new IOException("Unknown marker layer " + layerOrdinal);
+        }
+        final MarkerLayer layer = MarkerLayer.values()[layerOrdinal];
+        final UUID world = new UUID(in.readLong(), in.readLong());
+        final String label = readString(in);
+        final double x = in.readDouble();
+        final double y = in.readDouble();
+        final double z = in.readDouble();
+        final double radius = in.readDouble();
+        final int segments = in.readInt();
+        final int points = in.readInt();
+        double[] pointsX = null;
+        double[] pointsZ = null;
+        if (points >= 0) {
+            pointsX = new double[points];
+            pointsZ = new double[points];
+            for (int i = 0; i < points; i++) {
+                pointsX[i] = in.readDouble();
+                pointsZ[i] = in.readDouble();
+            }
+        }
+        final float minY = in.readFloat();
+        final float maxY = in.readFloat();
+        final String icon = in.readBoolean() ? readString(in) : null;
+        MarkerStyle style = null;
+        if (in.readBoolean()) {
+            style = styles.computeIfAbsent(MarkerStyle.read(in), s -> s);
+        }
+        return new MarkerSpec(type, layer, world, label, x, y, z, radius, segments, pointsX, pointsZ, minY, maxY,
+            icon, style, in.readDouble(), in.readDouble());
+    }
+
+    /**
+     * Unlike writeUTF this has no 64 KB limit, which merged region labels can exceed.
+     */
+    private static void writeString(DataOutput out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    MarkerLayer getLayer() {
+        return layer;
+    }
+
+    UUID getWorld() {
+        return world;
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    String getIcon() {
+        return icon;
+    }
+
+    /**
+     * Build a fresh BlueMap marker for this spec.
+     */
+    Marker create() {
+        final DistanceRangedMarker marker;
+        switch (type) {
+            case POI:
+                marker = POIMarker.builder()
+                    .label(label)
+                    .position(new Vector3d(x, y, z))
+                    .icon(icon, 0, 0)
+                    .anchor(new Vector2i(16, 16))
+                    .build();
+                break;
+            case CIRCLE:
+                final ShapeMarker sm = ShapeMarker.builder()
+                    .shape(CircleGeometry.circle(x, z, radius, segments), (float) y)
+                    .label(label)
+                    .build();
+                sm.setLineColor(style.getLineColor());
+                sm.setLineWidth(style.getLineWidth());
+                sm.setFillColor(style.getFillColor());
+                marker = sm;
+                break;
+            case EXTRUDE:
+                final Vector2d[] points = new Vector2d[pointsX.length];
+                for (int i = 0; i < pointsX.length; i++) {
+                    points[i] = new Vector2d(pointsX[i], pointsZ[i]);
+                }
+                final ExtrudeMarker em = ExtrudeMarker.builder()
+                    .position(new Vector3d(x, y, z))
+                    .label(label)
+                    .shape(new Shape.Builder().addPoints(points).build(), minY, maxY)
+                    .build();
+                em.setLineColor(style.getLineColor());
+                em.setLineWidth(style.getLineWidth());
+                em.setFillColor(style.getFillColor());
+                em.setDepthTestEnabled(false);
+                marker = em;
+                break;
+            default:
+                throw new IllegalStateException("Unknown marker type " + type);
+        }
+        if (minDistance >= 0) {
+            marker.setMinDistance(minDistance);
+        }
+        if (maxDistance > 0 && maxDistance > minDistance) {
+            marker.setMaxDistance(maxDistance);
+        }
+        return marker;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MarkerSpec)) {
+            return false;
+        }
+        final MarkerSpec other = (MarkerSpec) o;
+        return hash == other.hash
+            && type == other.type
+            && layer == other.layer
+            && Double.compare(x, other.x) == 0
+            && Double.compare(y, other.y) == 0
+            && Double.compare(z, other.z) == 0
+            && Double.compare(radius, other.radius) == 0
+            && segments == other.segments
+            && Float.compare(minY, other.minY) == 0
+            && Float.compare(maxY, other.maxY) == 0
+            && Double.compare(minDistance, other.minDistance) == 0
+            && Double.compare(maxDistance, other.maxDistance) == 0
+            && Objects.equals(world, other.world)
+            && Objects.equals(label, other.label)
+            && Objects.equals(icon, other.icon)
+            && Objects.equals(style, other.style)
+            && Arrays.equals(pointsX, other.pointsX)
+            && Arrays.equals(pointsZ, other.pointsZ);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import de.bluecolored.bluemap.api.math.Color;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Line and fill style shared by all shape markers of one kind. The BlueMap colors are created
+ * once here instead of for every marker.
+ */
+final class MarkerStyle {
+    private final int lineRgb;
+    private final int lineOpacity;
+    private final int lineWidth;
+    private final int fillRgb;
+    private final int fillOpacity;
+    private final Color lineColor;
+    private final Color fillColor;
+
+    MarkerStyle(java.awt.Color line, int lineOpacity, int lineWidth, java.awt.Color fill, int fillOpacity) {
+        this.lineRgb = line.getRGB() & 0xFFFFFF;
+        this.lineOpacity = lineOpacity;
+        this.lineWidth = lineWidth;
+        this.fillRgb = fill.getRGB() & 0xFFFFFF;
+        this.fillOpacity = fillOpacity;
+        this.lineColor = new Color(line.getRed(), line.getGreen(), line.getBlue(), lineOpacity);
+        this.fillColor = new Color(fill.getRed(), fill.getGreen(), fill.getBlue(), fillOpacity);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(lineRgb);
+        out.writeInt(lineOpacity);
+        out.writeInt(lineWidth);
+        out.writeInt(fillRgb);
+        out.writeInt(fillOpacity);
+    }
+
+    static MarkerStyle read(DataInput in) throws IOException {
+        final java.awt.Color line = new java.awt.Color(in.readInt());
+        final int lineOpacity = in.readInt();
+        final int lineWidth = in.readInt();
+        final java.awt.Color fill = new java.awt.Color(in.readInt());
+        return new MarkerStyle(line, lineOpacity, lineWidth, fill, in.readInt());
+    }
+
+    Color getLineColor() {
+        return lineColor;
+    }
+
+    int getLineWidth() {
+        return lineWidth;
+    }
+
+    Color getFillColor() {
+        return fillColor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MarkerStyle)) {
+            return false;
+        }
+        final MarkerStyle other = (MarkerStyle) o;
+        return lineRgb == other.lineRgb
+            && lineOpacity == other.lineOpacity
+            && lineWidth == other.lineWidth
+            && fillRgb == other.fillRgb
+            && fillOpacity == other.fillOpacity;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = lineRgb;
+        h = 31 * h + lineOpacity;
+        h = 31 * h + lineWidth;
+        h = 31 * h + fillRgb;
+        h = 31 * h + fillOpacity;
+        return h;
+    }
+}
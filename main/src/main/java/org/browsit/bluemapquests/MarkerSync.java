@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import de.bluecolored.bluemap.api.markers.Marker;
+import de.bluecolored.bluemap.api.markers.MarkerSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the marker state applied during the previous run and pushes only the difference
+ * to the BlueMap marker sets. The applied state doubles as the set of marker ids owned by
+ * the plugin, anything else found in the sets is left over from an earlier run.
+ * <p>
+ * Markers never cross worlds, so the state is partitioned by world. Each partition is the only
+ * writer of its world's marker sets and has its own lock, which lets partitions be applied in
+ * parallel and worlds be added or dropped without waiting for an apply in progress.
+ */
+final class MarkerSync {
+    private final Map<UUID, Partition> partitions = new ConcurrentHashMap<>();
+    private final UpdateStats stats;
+    private final ForkJoinPool pool;
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param pool pool to apply worlds in parallel on, or null to apply them one after another
+     */
+    MarkerSync(Map<UUID, Map<MarkerLayer, List<MarkerSet>>> sets, UpdateStats stats, ForkJoinPool pool) {
+        for (final Map.Entry<UUID, Map<MarkerLayer, List<MarkerSet>>> entry : sets.entrySet()) {
+            partitions.put(entry.getKey(), new Partition(entry.getKey(), entry.getValue()));
+        }
+        this.stats = stats;
+        this.pool = pool;
+    }
+
+    /**
+     * Start managing the marker sets of a world that was loaded after this sync was created.
+     *
+     * @param sets marker sets of every enabled layer, markers of other layers are not shown
+     */
+    void addWorld(UUID world, Map<MarkerLayer, List<MarkerSet>> sets) {
+        partitions.putIfAbsent(world, new Partition(world, sets));
+    }
+
+    /**
+     * Stop managing a world, e.g. because it was unloaded. Its markers are left in its marker
+     * sets, which the caller takes out of BlueMap as a whole.
+     */
+    void removeWorld(UUID world) {
+        final Partition partition = partitions.remove(world);
+        if (partition != null && partition.shown > 0) {
+            stats.markers(0, 0, partition.shown, 0);
+        }
+    }
+
+    /**
+     * Apply the desired state, touching only markers that were added, changed or dropped.
+     *
+     * @param desired marker id to spec for everything that should currently be shown
+     */
+    void apply(Map<String, MarkerSpec> desired) {
+        final Map<UUID, Map<String, MarkerSpec>> byWorld = split(desired);
+        run(partition -> partition.apply(byWorld.getOrDefault(partition.world, Collections.emptyMap())));
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return number of full syncs applied so far
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Show markers from an earlier run right away, until the first full sync replaces them.
+     *
+     * @param cached marker id to spec as saved by the previous run
+     */
+    void preload(Map<String, MarkerSpec> cached) {
+        // Worlds that are gone are skipped, the first sync would have nothing to remove them from
+        final Map<UUID, Map<String, MarkerSpec>> byWorld = split(cached);
+        run(partition -> partition.preload(byWorld.getOrDefault(partition.world, Collections.emptyMap())));
+    }
+
+    /**
+     * @return copy of the markers currently shown
+     */
+    Map<String, MarkerSpec> getApplied() {
+        final Map<String, MarkerSpec> applied = new HashMap<>();
+        for (final Partition partition : partitions.values()) {
+            partition.copyApplied(applied);
+        }
+        return applied;
+    }
+
+    /**
+     * Apply a partial change on top of the current state, leaving all other markers as they are.
+     *
+     * @param changed markers to add or update
+     * @param removed ids of markers to drop
+     */
+    void update(Map<String, MarkerSpec> changed, Collection<String> removed) {
+        // Partial changes are small, not worth spreading over threads
+        for (final Partition partition : partitions.values()) {
+            partition.update(changed, removed);
+        }
+        report();
+    }
+
+    /**
+     * Move NPC markers in place, without rebuilding them. Markers that are not shown are skipped.
+     */
+    void move(List<NpcTracker.Move> moves) {
+        for (final NpcTracker.Move move : moves) {
+            final Partition partition = partitions.get(move.world);
+            if (partition != null) {
+                partition.move(move.id, move.x, move.y, move.z);
+            }
+        }
+        report();
+    }
+
+    private Map<UUID, Map<String, MarkerSpec>> split(Map<String, MarkerSpec> specs) {
+        final Map<UUID, Map<String, MarkerSpec>> byWorld = new HashMap<>();
+        for (final Map.Entry<String, MarkerSpec> entry : specs.entrySet()) {
+            final UUID world = entry.getValue().getWorld();
+            if (partitions.containsKey(world)) {
+                byWorld.computeIfAbsent(world, w -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+            }
+        }
+        return byWorld;
+    }
+
+    private void run(Consumer<Partition> action) {
+        if (pool == null || partitions.size() < 2) {
+            for (final Partition partition : partitions.values()) {
+                action.accept(partition);
+            }
+        } else {
+            final List<ForkJoinTask<?>> tasks = new ArrayList<>(partitions.size());
+            for (final Partition partition : partitions.values()) {
+                tasks.add(ForkJoinTask.adapt(() -> action.accept(partition)));
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        }
+        report();
+    }
+
+    private void report() {
+        int added = 0;
+        int updated = 0;
+        int removed = 0;
+        int unchanged = 0;
+        for (final Partition partition : partitions.values()) {
+            synchronized (partition) {
+                added += partition.added;
+                updated += partition.updated;
+                removed += partition.removed;
+                unchanged += partition.unchanged;
+                partition.added = 0;
+                partition.updated = 0;
+                partition.removed = 0;
+                partition.unchanged = 0;
+            }
+        }
+        if (added + updated + removed + unchanged > 0) {
+            stats.markers(added, updated, removed, unchanged);
+        }
+    }
+
+    /**
+     * Applied state and marker sets of one world, guarded by the partition itself.
+     */
+    private static final class Partition {
+        private final UUID world;
+        private final Map<MarkerLayer, List<MarkerSet>> sets;
+        private Map<String, MarkerSpec> applied = new HashMap<>();
+        private boolean swept;
+        // Size of the applied state, readable without the lock
+        private volatile int shown;
+        // Counts of the last call, collected by report()
+        private int added;
+        private int updated;
+        private int removed;
+        private int unchanged;
+
+        Partition(UUID world, Map<MarkerLayer, List<MarkerSet>> sets) {
+            this.world = world;
+            this.sets = sets;
+        }
+
+        synchronized void apply(Map<String, MarkerSpec> desired) {
+            int retained = 0;
+            for (final Map.Entry<String, MarkerSpec> entry : desired.entrySet()) {
+                final MarkerSpec spec = entry.getValue();
+                final MarkerSpec previous = applied.get(entry.getKey());
+                if (previous != null) {
+                    retained++;
+                }
+                if (spec.equals(previous)) {
+                    unchanged++;
+                    continue;
+                }
+                put(entry.getKey(), spec, previous);
+            }
+            // Every previously owned id is still produced, so there is nothing to collect
+            if (retained < applied.size()) {
+                for (final Map.Entry<String, MarkerSpec> entry : applied.entrySet()) {
+                    if (!desired.containsKey(entry.getKey())) {
+                        remove(entry.getKey(), entry.getValue());
+                        removed++;
+                    }
+                }
+            }
+            if (!swept) {
+                sweep(desired);
+                swept = true;
+            }
+            added += desired.size() - retained;
+            updated += retained - unchanged;
+            applied = desired;
+            shown = applied.size();
+        }
+
+        synchronized void preload(Map<String, MarkerSpec> cached) {
+            for (final Map.Entry<String, MarkerSpec> entry : cached.entrySet()) {
+                put(entry.getKey(), entry.getValue(), null);
+            }
+            applied = new HashMap<>(cached);
+            shown = applied.size();
+        }
+
+        synchronized void copyApplied(Map<String, MarkerSpec> target) {
+            target.putAll(applied);
+        }
+
+        synchronized void update(Map<String, MarkerSpec> changed, Collection<String> removedIds) {
+            for (final String id : removedIds) {
+                final MarkerSpec previous = applied.remove(id);
+                if (previous != null) {
+                    remove(id, previous);
+                    removed++;
+                }
+            }
+            for (final Map.Entry<String, MarkerSpec> entry : changed.entrySet()) {
+                final String id = entry.getKey();
+                final MarkerSpec spec = entry.getValue();
+                if (!spec.getWorld().equals(world)) {
+                    // Moved to another world, whose partition adds it
+                    final MarkerSpec previous = applied.remove(id);
+                    if (previous != null) {
+                        remove(id, previous);
+                    }
+                    continue;
+                }
+                final MarkerSpec previous = applied.put(id, spec);
+                if (spec.equals(previous)) {
+                    unchanged++;
+                    continue;
+                }
+                if (previous == null) {
+                    added++;
+                } else {
+                    updated++;
+                }
+                put(id, spec, previous);
+            }
+            shown = applied.size();
+        }
+
+        synchronized void move(String id, double x, double y, double z) {
+            final MarkerSpec spec = applied.get(id);
+            if (spec == null || spec.getType() != MarkerSpec.Type.POI) {
+                return;
+            }
+            applied.put(id, spec.moveTo(x, y, z));
+            for (final MarkerSet set : sets.getOrDefault(spec.getLayer(), Collections.emptyList())) {
+                final Marker marker = set.get(id);
+                if (marker != null) {
+                    marker.setPosition(x, y, z);
+                }
+            }
+            updated++;
+        }
+
+        /**
+         * Drop markers that were already in reused marker sets but are not produced by this run,
+         * e.g. ones left behind by a previous activation.
+         */
+        private void sweep(Map<String, MarkerSpec> desired) {
+            for (final Map.Entry<MarkerLayer, List<MarkerSet>> entry : sets.entrySet()) {
+                final MarkerLayer layer = entry.getKey();
+                for (final MarkerSet set : entry.getValue()) {
+                    set.getMarkers().keySet().removeIf(id -> {
+                        final MarkerSpec spec = desired.get(id);
+                        return spec == null || spec.getLayer() != layer;
+                    });
+                }
+            }
+        }
+
+        /**
+         * @param previous spec applied so far, to move the marker out of its old layer
+         */
+        private void put(String id, MarkerSpec spec, MarkerSpec previous) {
+            if (previous != null && previous.getLayer() != spec.getLayer()) {
+                remove(id, previous);
+            }
+            final List<MarkerSet> layerSets = sets.get(spec.getLayer());
+            if (layerSets == null) {
+                // Layer is disabled
+                return;
+            }
+            // One marker instance is shared by all maps of the world
+            final Marker marker = spec.create();
+            for (final MarkerSet set : layerSets) {
+                set.put(id, marker);
+            }
+        }
+
+        private void remove(String id, MarkerSpec spec) {
+            for (final MarkerSet set : sets.getOrDefault(spec.getLayer(), Collections.emptyList())) {
+                set.remove(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.UUID;
+
+/**
+ * Buckets NPC markers into a grid per world and layer. Cells holding enough NPCs get a cluster
+ * marker that is shown from afar, while the NPCs in them are only shown up close. Only cells whose
+ * members changed are rebuilt on partial updates.
+ */
+final class NpcClusters {
+    private static final int LABEL_NAMES = 8;
+
+    private final double cellSize;
+    private final int minSize;
+    private final double splitDistance;
+    private final String head;
+    private final double minDistance;
+    private final double maxDistance;
+    private final Map<String, Cell> cells = new HashMap<>();
+    // Cell of each NPC by marker id
+    private final Map<String, Cell> byNpc = new HashMap<>();
+
+    /**
+     * @param cellSize edge length of a grid cell in blocks
+     * @param minSize number of NPCs from which a cell is clustered
+     * @param splitDistance camera distance at which single NPCs give way to the cluster
+     * @param head label prefix of cluster markers
+     */
+    NpcClusters(double cellSize, int minSize, double splitDistance, String head, double minDistance,
+                double maxDistance) {
+        this.cellSize = cellSize;
+        this.minSize = minSize;
+        this.splitDistance = splitDistance;
+        this.head = head;
+        this.minDistance = minDistance;
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Replace all NPCs and put the specs of every NPC and cluster into the given map.
+     */
+    void rebuild(List<UpdateSnapshot.Npc> npcs, Map<String, MarkerSpec> out) {
+        cells.clear();
+        byNpc.clear();
+        for (final UpdateSnapshot.Npc npc : npcs) {
+            insert(npc);
+        }
+        for (final Cell cell : cells.values()) {
+            emit(cell, out, null);
+        }
+    }
+
+    /**
+     * Move, add or drop some NPCs and report the markers of every affected cell.
+     *
+     * @param changed NPCs that were added or moved
+     * @param removedNpcs marker ids of NPCs that are gone
+     * @param out receives specs of markers to add or update
+     * @param removed receives ids of markers to drop
+     */
+    void update(List<UpdateSnapshot.Npc> changed, Collection<String> removedNpcs, Map<String, MarkerSpec> out,
+                Collection<String> removed) {
+        final Set<Cell> dirty = new HashSet<>();
+        for (final String id : removedNpcs) {
+            final Cell cell = byNpc.remove(id);
+            if (cell != null) {
+                cell.members.remove(id);
+                dirty.add(cell);
+            }
+            removed.add(id);
+        }
+        for (final UpdateSnapshot.Npc npc : changed) {
+            final Cell previous = byNpc.get(npc.id);
+            if (previous != null && previous.id.equals(cellId(npc))) {
+                // Still in the same cell, replace in place to keep the label order
+                previous.members.put(npc.id, npc);
+                dirty.add(previous);
+                continue;
+            }
+            if (previous != null) {
+                previous.members.remove(npc.id);
+                dirty.add(previous);
+            }
+            dirty.add(insert(npc));
+        }
+        for (final Cell cell : dirty) {
+            if (cell.members.isEmpty()) {
+                cells.remove(cell.id);
+                removed.add(cell.id);
+            } else {
+                emit(cell, out, removed);
+            }
+        }
+    }
+
+    private String cellId(UpdateSnapshot.Npc npc) {
+        final long cx = (long) Math.floor(npc.x / cellSize);
+        final long cz = (long) Math.floor(npc.z / cellSize);
+        // NPCs are only clustered with others of the same layer, so hiding a layer hides its clusters too
+        return "quests-cluster-" + npc.layer.key + "-" + npc.world + "-" + cx + "-" + cz;
+    }
+
+    private Cell insert(UpdateSnapshot.Npc npc) {
+        final String id = cellId(npc);
+        Cell cell = cells.get(id);
+        if (cell == null) {
+            cell = new Cell(id, npc.layer, npc.world);
+            cells.put(id, cell);
+        }
+        cell.members.put(npc.id, npc);
+        byNpc.put(npc.id, cell);
+        return cell;
+    }
+
+    private void emit(Cell cell, Map<String, MarkerSpec> out, Collection<String> removed) {
+        final boolean clustered = cell.members.size() >= minSize;
+        final double npcMax = clustered ? splitDistance : maxDistance;
+        double x = 0;
+        double y = 0;
+        double z = 0;
+        final Map<String, Integer> icons = new HashMap<>();
+        final StringJoiner label = new StringJoiner(", ", head + " (" + cell.members.size() + "): ", "");
+        int named = 0;
+        for (final UpdateSnapshot.Npc npc : cell.members.values()) {
+            out.put(npc.id, MarkerSpec.poi(npc.layer, npc.world, npc.label, npc.x, npc.y, npc.z, npc.icon, minDistance,
+                npcMax));
+            if (!clustered) {
+                continue;
+            }
+            x += npc.x;
+            y += npc.y;
+            z += npc.z;
+            icons.merge(npc.icon, 1, Integer::sum);
+            if (named++ < LABEL_NAMES) {
+                label.add(npc.label);
+            }
+        }
+        if (!clustered) {
+            if (removed != null) {
+                removed.add(cell.id);
+            }
+            return;
+        }
+        if (named > LABEL_NAMES) {
+            label.add("and " + (named - LABEL_NAMES) + " more");
+        }
+        // The icon most members share stands for the cluster
+        String icon = null;
+        int best = 0;
+        for (final Map.Entry<String, Integer> entry : icons.entrySet()) {
+            if (entry.getValue() > best) {
+                best = entry.getValue();
+                icon = entry.getKey();
+            }
+        }
+        final int n = cell.members.size();
+        out.put(cell.id, MarkerSpec.poi(cell.layer, cell.world, label.toString(), x / n, y / n, z / n, icon,
+            splitDistance, maxDistance));
+    }
+
+    private static final class Cell {
+        final String id;
+        final MarkerLayer layer;
+        final UUID world;
+        final Map<String, UpdateSnapshot.Npc> members = new LinkedHashMap<>();
+
+        Cell(String id, MarkerLayer layer, UUID world) {
+            this.id = id;
+            this.layer = layer;
+            this.world = world;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.util.UUID;
+
+/**
+ * Resolves quest NPC UUIDs against one NPC plugin.
+ */
+interface NpcLocator {
+    /**
+     * Called once before each capture so implementations can drop per-cycle state.
+     */
+    default void refresh() {
+    }
+
+    /**
+     * @param uuid NPC UUID as stored by Quests
+     * @return current position and name, or null if this backend does not know the NPC
+     */
+    Located locate(UUID uuid);
+
+    final class Located {
+        final UUID world;
+        final double x;
+        final double y;
+        final double z;
+        final String name;
+
+        Located(UUID world, double x, double y, double z, String name) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.name = name;
+        }
+    }
+}
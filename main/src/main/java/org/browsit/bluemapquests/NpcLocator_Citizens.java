@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import net.citizensnpcs.api.npc.NPC;
+import net.citizensnpcs.api.npc.NPCRegistry;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+
+import java.util.UUID;
+
+class NpcLocator_Citizens implements NpcLocator {
+    private final NPCRegistry registry;
+
+    NpcLocator_Citizens(NPCRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Located locate(UUID uuid) {
+        final NPC n = registry.getByUniqueId(uuid);
+        if (n == null) {
+            return null;
+        }
+        Location l = n.getStoredLocation();
+        final Entity entity = n.getEntity();
+        if (l == null && entity != null) {
+            l = entity.getLocation();
+        }
+        if (l == null || l.getWorld() == null) {
+            return null;
+        }
+        return new Located(l.getWorld().getUID(), l.getX(), l.getY(), l.getZ(), n.getFullName());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import io.github.znetworkw.znpcservers.npc.NPC;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+class NpcLocator_ZNPCsLegacy implements NpcLocator {
+    private final Supplier<Set<UUID>> knownUuids;
+    private Set<UUID> known;
+    private Map<UUID, NPC> index;
+
+    /**
+     * @param knownUuids source of the UUIDs Quests registered for ZNPCsPlus
+     */
+    NpcLocator_ZNPCsLegacy(Supplier<Set<UUID>> knownUuids) {
+        this.knownUuids = knownUuids;
+    }
+
+    @Override
+    public void refresh() {
+        known = null;
+        index = null;
+    }
+
+    @Override
+    public Located locate(UUID uuid) {
+        if (known == null) {
+            known = knownUuids.get();
+        }
+        if (!known.contains(uuid)) {
+            return null;
+        }
+        if (index == null) {
+            // Index all NPCs on first use in a cycle instead of scanning them per lookup
+            index = new HashMap<>();
+            for (final NPC n : NPC.all()) {
+                index.put(n.getUUID(), n);
+            }
+        }
+        final NPC n = index.get(uuid);
+        if (n == null) {
+            return null;
+        }
+        final Location l = n.getLocation();
+        if (l == null || l.getWorld() == null) {
+            return null;
+        }
+        String name = "null";
+        if (n.getBukkitEntity() != null) {
+            final Entity entity = (Entity) n.getBukkitEntity();
+            if (entity.getCustomName() != null) {
+                name = entity.getCustomName();
+            } else {
+                name = n.getNpcPojo().getHologramLines().get(0);
+            }
+        }
+        return new Located(l.getWorld().getUID(), l.getX(), l.getY(), l.getZ(), name);
+    }
+}
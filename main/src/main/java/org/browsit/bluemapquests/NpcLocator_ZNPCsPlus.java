@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import lol.pyr.znpcsplus.api.NpcApi;
+import lol.pyr.znpcsplus.api.entity.EntityProperty;
+import lol.pyr.znpcsplus.api.npc.Npc;
+import lol.pyr.znpcsplus.api.npc.NpcEntry;
+import org.bukkit.Location;
+
+import java.util.UUID;
+
+class NpcLocator_ZNPCsPlus implements NpcLocator {
+    private final NpcApi api;
+    private EntityProperty<String> displayNameProperty;
+
+    NpcLocator_ZNPCsPlus(NpcApi api) {
+        this.api = api;
+    }
+
+    @Override
+    public Located locate(UUID uuid) {
+        final NpcEntry entry = api.getNpcRegistry().getByUuid(uuid);
+        if (entry == null) {
+            return null;
+        }
+        final Npc znpc = entry.getNpc();
+        final Location l = znpc.getLocation().toBukkitLocation(znpc.getWorld());
+        if (l == null || l.getWorld() == null) {
+            return null;
+        }
+        String name = "null";
+        if (displayNameProperty == null) {
+            displayNameProperty = api.getPropertyRegistry().getByName("display_name", String.class);
+        }
+        if (displayNameProperty != null && znpc.hasProperty(displayNameProperty)) {
+            name = znpc.getProperty(displayNameProperty);
+        }
+        return new Located(l.getWorld().getUID(), l.getX(), l.getY(), l.getZ(), name);
+    }
+}
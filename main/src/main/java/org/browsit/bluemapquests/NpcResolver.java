@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Dispatches NPC lookups to the installed NPC plugins. Once a backend has resolved a UUID it
+ * is remembered as the owner, so later lookups go straight to that backend.
+ */
+final class NpcResolver {
+    private final List<NpcLocator> locators = new ArrayList<>();
+    private final Map<UUID, NpcLocator> owners = new HashMap<>();
+
+    void register(NpcLocator locator) {
+        locators.add(locator);
+    }
+
+    boolean isEmpty() {
+        return locators.isEmpty();
+    }
+
+    /**
+     * @return number of NPCs whose owning locator is remembered
+     */
+    int size() {
+        return owners.size();
+    }
+
+    void refresh() {
+        for (final NpcLocator locator : locators) {
+            locator.refresh();
+        }
+    }
+
+    /**
+     * Forget the owners of NPCs that are no longer referenced by any quest.
+     */
+    void retain(Set<UUID> uuids) {
+        owners.keySet().retainAll(uuids);
+    }
+
+    NpcLocator.Located locate(UUID uuid) {
+        final NpcLocator owner = owners.get(uuid);
+        if (owner != null) {
+            final NpcLocator.Located located = owner.locate(uuid);
+            if (located != null) {
+                return located;
+            }
+            owners.remove(uuid);
+        }
+        for (final NpcLocator locator : locators) {
+            if (locator == owner) {
+                continue;
+            }
+            final NpcLocator.Located located = locator.locate(uuid);
+            if (located != null) {
+                owners.put(uuid, locator);
+                return located;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * NPCs seen moving between two full captures, sampled on a timer of their own so that their
+ * markers keep up while static NPCs stay with the full updates. A marker only follows once its
+ * NPC left a dead-band around the position shown, and NPCs that stop moving are dropped again.
+ * Runs on the server thread.
+ */
+final class NpcTracker {
+    private final double deadBandSquared;
+    private final int idleSamples;
+    private final Map<UUID, Tracked> tracked = new HashMap<>();
+
+    /**
+     * @param deadBand distance in blocks an NPC has to move before its marker follows
+     * @param idleSamples samples without movement after which an NPC is no longer tracked
+     */
+    NpcTracker(double deadBand, int idleSamples) {
+        this.deadBandSquared = deadBand * deadBand;
+        this.idleSamples = idleSamples;
+    }
+
+    boolean isEmpty() {
+        return tracked.isEmpty();
+    }
+
+    int size() {
+        return tracked.size();
+    }
+
+    /**
+     * Note the position an NPC is shown at, and start tracking it if it moved since it was shown
+     * by the previous capture.
+     *
+     * @param previous the NPC as of the previous capture, or null to only update a tracked NPC
+     */
+    void shown(UUID uuid, UpdateSnapshot.Npc npc, UpdateSnapshot.Npc previous) {
+        Tracked t = tracked.get(uuid);
+        if (t == null) {
+            if (previous == null || !previous.world.equals(npc.world)
+                || !isOutside(previous.x, previous.y, previous.z, npc.x, npc.y, npc.z)) {
+                return;
+            }
+            t = new Tracked();
+            tracked.put(uuid, t);
+        }
+        if (!t.ids.contains(npc.id)) {
+            t.ids.add(npc.id);
+        }
+        t.world = npc.world;
+        t.x = npc.x;
+        t.y = npc.y;
+        t.z = npc.z;
+        t.idle = 0;
+    }
+
+    void forget(UUID uuid) {
+        tracked.remove(uuid);
+    }
+
+    /**
+     * Stop tracking NPCs that are no longer referenced by any quest.
+     */
+    void retain(Set<UUID> referenced) {
+        tracked.keySet().retainAll(referenced);
+    }
+
+    /**
+     * Locate every tracked NPC once.
+     *
+     * @param moves receives NPCs that left their dead-band within the same world
+     * @param relocated receives NPCs that changed world or are gone, and are no longer tracked
+     */
+    void sample(NpcResolver resolver, List<Move> moves, Collection<UUID> relocated) {
+        final Iterator<Map.Entry<UUID, Tracked>> it = tracked.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<UUID, Tracked> entry = it.next();
+            final Tracked t = entry.getValue();
+            final NpcLocator.Located l = resolver.locate(entry.getKey());
+            if (l == null || !l.world.equals(t.world)) {
+                relocated.add(entry.getKey());
+                it.remove();
+            } else if (isOutside(t.x, t.y, t.z, l.x, l.y, l.z)) {
+                for (final String id : t.ids) {
+                    moves.add(new Move(entry.getKey(), id, t.world, l.x, l.y, l.z));
+                }
+                t.x = l.x;
+                t.y = l.y;
+                t.z = l.z;
+                t.idle = 0;
+            } else if (++t.idle >= idleSamples) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean isOutside(double x, double y, double z, double toX, double toY, double toZ) {
+        final double dx = toX - x;
+        final double dy = toY - y;
+        final double dz = toZ - z;
+        return dx * dx + dy * dy + dz * dz > deadBandSquared;
+    }
+
+    /**
+     * New position of an NPC marker.
+     */
+    static final class Move {
+        final UUID uuid;
+        final String id;
+        final UUID world;
+        final double x;
+        final double y;
+        final double z;
+
+        Move(UUID uuid, String id, UUID world, double x, double y, double z) {
+            this.uuid = uuid;
+            this.id = id;
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    private static final class Tracked {
+        // One marker per role of the NPC
+        private final List<String> ids = new ArrayList<>(1);
+        // Position the marker is shown at
+        private UUID world;
+        private double x;
+        private double y;
+        private double z;
+        private int idle;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer an {@link AreaProvider} writes a region outline into, as interleaved x/z pairs
+ * along with the vertical extent. It grows as needed and is meant to be kept between regions.
+ */
+final class OutlineBuffer {
+    private double[] xz = new double[32];
+    private int size;
+    private double minY;
+    private double maxY;
+
+    void clear() {
+        size = 0;
+        minY = 0;
+        maxY = 0;
+    }
+
+    void add(double x, double z) {
+        if (size * 2 == xz.length) {
+            xz = Arrays.copyOf(xz, xz.length * 2);
+        }
+        xz[size * 2] = x;
+        xz[size * 2 + 1] = z;
+        size++;
+    }
+
+    void setHeight(double minY, double maxY) {
+        this.minY = minY;
+        this.maxY = maxY;
+    }
+
+    /**
+     * @return number of points
+     */
+    int size() {
+        return size;
+    }
+
+    double getX(int i) {
+        return xz[i * 2];
+    }
+
+    double getZ(int i) {
+        return xz[i * 2 + 1];
+    }
+
+    double getMinY() {
+        return minY;
+    }
+
+    double getMaxY() {
+        return maxY;
+    }
+}
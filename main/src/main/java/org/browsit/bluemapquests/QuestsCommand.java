@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabCompleter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Handles /bmquests, with the subcommands "stats" and "reload".
+ */
+class QuestsCommand implements CommandExecutor, TabCompleter {
+    private static final String[] SUBCOMMANDS = { "stats", "reload" };
+
+    private final UpdateStats stats;
+    private final BooleanSupplier reload;
+
+    /**
+     * @param reload reloads the render config, returning false if the plugin is not active
+     */
+    QuestsCommand(UpdateStats stats, BooleanSupplier reload) {
+        this.stats = stats;
+        this.reload = reload;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length != 1) {
+            return false;
+        }
+        final String sub = args[0].toLowerCase();
+        if (!isSubcommand(sub)) {
+            return false;
+        }
+        if (!sender.hasPermission("bluemapquests." + sub)) {
+            sender.sendMessage("You do not have permission to do that.");
+            return true;
+        }
+        if (sub.equals("stats")) {
+            for (final String line : stats.snapshot().describe()) {
+                sender.sendMessage(line);
+            }
+        } else if (reload.getAsBoolean()) {
+            sender.sendMessage("BlueMap-Quests configuration reloaded, markers update on the next cycle.");
+        } else {
+            sender.sendMessage("BlueMap-Quests is not active, nothing to reload.");
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String label, String[] args) {
+        final List<String> matches = new ArrayList<>();
+        if (args.length == 1) {
+            for (final String sub : SUBCOMMANDS) {
+                if (sub.startsWith(args[0].toLowerCase()) && sender.hasPermission("bluemapquests." + sub)) {
+                    matches.add(sub);
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static boolean isSubcommand(String sub) {
+        for (final String candidate : SUBCOMMANDS) {
+            if (candidate.equals(sub)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import me.pikamug.quests.dependencies.reflect.worldguard.WorldGuardAPI;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Remembers the outline computed for each region, per world since worlds may define regions
+ * with the same id. WorldGuard swaps in a new {@link ProtectedRegion} instance whenever a region
+ * is redefined or reloaded, so the outline is only recomputed when the instance changes.
+ */
+class RegionCache {
+    private final WorldGuardAPI worldGuardApi;
+    private final Map<UUID, Map<String, Outline>> outlines = new HashMap<>();
+    // Loaded worlds and their region managers, resolved once per round of lookups
+    private List<World> loaded;
+    private final Map<UUID, RegionManager> managers = new HashMap<>();
+    // Only used on the server thread, shared by all lookups
+    private final OutlineBuffer buffer = new OutlineBuffer();
+    private double tolerance;
+    private boolean removeCollinear;
+
+    RegionCache(WorldGuardAPI worldGuardApi) {
+        this.worldGuardApi = worldGuardApi;
+    }
+
+    /**
+     * Set how outlines are simplified, dropping cached outlines if the settings changed.
+     *
+     * @param tolerance Douglas-Peucker tolerance in blocks, 0 to disable
+     * @param removeCollinear whether to drop duplicate and collinear points
+     */
+    void setSimplification(double tolerance, boolean removeCollinear) {
+        if (tolerance != this.tolerance || removeCollinear != this.removeCollinear) {
+            this.tolerance = tolerance;
+            this.removeCollinear = removeCollinear;
+            outlines.clear();
+        }
+    }
+
+    /**
+     * Start a round of lookups, e.g. for a capture. Loaded worlds and their region managers are
+     * resolved once per round instead of for every region.
+     */
+    void beginLookups() {
+        loaded = null;
+        managers.clear();
+    }
+
+    /**
+     * Get the outlines of a region in every loaded world that defines it.
+     *
+     * @param regionId WorldGuard region id
+     * @param target receives one outline per world with a supported region of that id
+     */
+    void get(String regionId, List<Outline> target) {
+        for (final World world : loadedWorlds()) {
+            final Outline outline = get(world, regionId);
+            if (outline != null) {
+                target.add(outline);
+            }
+        }
+    }
+
+    /**
+     * @return outline of the region in the given world, or null if the world has no supported
+     *         region with that id
+     */
+    Outline get(World world, String regionId) {
+        final ProtectedRegion pr = find(world, regionId);
+        final Map<String, Outline> cached = outlines.get(world.getUID());
+        if (pr == null) {
+            if (cached != null) {
+                cached.remove(regionId);
+            }
+            return null;
+        }
+        Outline outline = cached != null ? cached.get(regionId) : null;
+        if (outline == null || outline.source != pr) {
+            final AreaProvider provider = provider();
+            if (provider == null || !provider.outline(pr, buffer) || buffer.size() == 0) {
+                if (cached != null) {
+                    cached.remove(regionId);
+                }
+                return null;
+            }
+            // The cached outline keeps its own arrays, everything before that reuses the buffer
+            final double[] x = new double[buffer.size()];
+            final double[] z = new double[buffer.size()];
+            for (int i = 0; i < x.length; i++) {
+                x[i] = buffer.getX(i);
+                z[i] = buffer.getZ(i);
+            }
+            final double[][] ring = RegionGeometry.simplify(x, z, tolerance, removeCollinear);
+            outline = new Outline(pr, world.getUID(), ring[0], ring[1], (float) buffer.getMinY(),
+                (float) buffer.getMaxY());
+            outlines.computeIfAbsent(world.getUID(), w -> new HashMap<>()).put(regionId, outline);
+        }
+        return outline;
+    }
+
+    /**
+     * Forget regions that are no longer referenced by any quest, and worlds that were unloaded.
+     */
+    void retain(Set<String> regionIds) {
+        final Set<UUID> loadedIds = new HashSet<>();
+        for (final World world : loadedWorlds()) {
+            loadedIds.add(world.getUID());
+        }
+        final Iterator<Map.Entry<UUID, Map<String, Outline>>> it = outlines.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<UUID, Map<String, Outline>> entry = it.next();
+            entry.getValue().keySet().retainAll(regionIds);
+            if (entry.getValue().isEmpty() || !loadedIds.contains(entry.getKey())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return number of cached outlines over all worlds
+     */
+    int size() {
+        int size = 0;
+        for (final Map<String, Outline> cached : outlines.values()) {
+            size += cached.size();
+        }
+        return size;
+    }
+
+    private List<World> loadedWorlds() {
+        if (loaded == null) {
+            loaded = new ArrayList<>(worlds());
+        }
+        return loaded;
+    }
+
+    /**
+     * @return loaded worlds regions are looked up in
+     */
+    List<World> worlds() {
+        return Bukkit.getWorlds();
+    }
+
+    /**
+     * @return reader for the geometry of the installed WorldGuard, or null if there is none
+     */
+    AreaProvider provider() {
+        return AreaProvider.get();
+    }
+
+    /**
+     * @return region with that id in the given world, or null if there is none
+     */
+    ProtectedRegion find(World world, String regionId) {
+        if (world == null) {
+            return null;
+        }
+        // Worlds without regions have no manager, remember that as well
+        RegionManager manager = managers.get(world.getUID());
+        if (manager == null && !managers.containsKey(world.getUID())) {
+            manager = worldGuardApi.getRegionManager(world);
+            managers.put(world.getUID(), manager);
+        }
+        return manager != null ? manager.getRegion(regionId) : null;
+    }
+
+    static final class Outline {
+        final ProtectedRegion source;
+        final UUID world;
+        final double[] x;
+        final double[] z;
+        final float minY;
+        final float maxY;
+
+        Outline(ProtectedRegion source, UUID world, double[] x, double[] z, float minY, float maxY) {
+            this.source = source;
+            this.world = world;
+            this.x = x;
+            this.z = z;
+            this.minY = minY;
+            this.maxY = maxY;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reduces the number of points of region outlines and merges overlapping regions. Outlines
+ * are closed rings given as separate x and z coordinate arrays.
+ */
+final class RegionGeometry {
+    private RegionGeometry() {
+    }
+
+    /**
+     * @param tolerance maximum distance in blocks a dropped point may have from the simplified
+     *                  outline, 0 to keep all points that are not collinear
+     * @param removeCollinear whether to drop duplicate points and points on a straight edge
+     * @return simplified outline as { x, z }, or the given arrays if nothing was dropped
+     */
+    static double[][] simplify(double[] x, double[] z, double tolerance, boolean removeCollinear) {
+        double[][] ring = { x, z };
+        if (removeCollinear) {
+            ring = removeCollinear(ring[0], ring[1]);
+        }
+        if (tolerance > 0) {
+            ring = douglasPeucker(ring[0], ring[1], tolerance);
+        }
+        return ring;
+    }
+
+    static double[][] removeCollinear(double[] x, double[] z) {
+        final int n = x.length;
+        if (n < 4) {
+            return new double[][] { x, z };
+        }
+        // Drop repeated points first, they would make their neighbours look collinear
+        final int[] ring = new int[n];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (size == 0 || x[i] != x[ring[size - 1]] || z[i] != z[ring[size - 1]]) {
+                ring[size++] = i;
+            }
+        }
+        if (size > 1 && x[ring[0]] == x[ring[size - 1]] && z[ring[0]] == z[ring[size - 1]]) {
+            size--;
+        }
+        final boolean[] keep = new boolean[size];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            final int p = ring[(i + size - 1) % size];
+            final int c = ring[i];
+            final int q = ring[(i + 1) % size];
+            final double cross = (x[c] - x[p]) * (z[q] - z[c]) - (z[c] - z[p]) * (x[q] - x[c]);
+            if (cross != 0) {
+                keep[i] = true;
+                kept++;
+            }
+        }
+        if (kept == n) {
+            return new double[][] { x, z };
+        }
+        if (kept < 3) {
+            // Degenerate outline, leave it alone
+            return new double[][] { x, z };
+        }
+        final double[] rx = new double[kept];
+        final double[] rz = new double[kept];
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) {
+                rx[j] = x[ring[i]];
+                rz[j] = z[ring[i]];
+                j++;
+            }
+        }
+        return new double[][] { rx, rz };
+    }
+
+    static double[][] douglasPeucker(double[] x, double[] z, double tolerance) {
+        final int n = x.length;
+        if (n < 4) {
+            return new double[][] { x, z };
+        }
+        // Split the ring at the point farthest from the first one and simplify both halves
+        int far = 0;
+        double farDistance = -1;
+        for (int i = 1; i < n; i++) {
+            final double dx = x[i] - x[0];
+            final double dz = z[i] - z[0];
+            final double d = dx * dx + dz * dz;
+            if (d > farDistance) {
+                farDistance = d;
+                far = i;
+            }
+        }
+        final boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[far] = true;
+        final double squaredTolerance = tolerance * tolerance;
+        douglasPeucker(x, z, 0, far, squaredTolerance, keep);
+        douglasPeucker(x, z, far, n, squaredTolerance, keep);
+        int kept = 0;
+        for (final boolean k : keep) {
+            if (k) {
+                kept++;
+            }
+        }
+        if (kept == n || kept < 3) {
+            return new double[][] { x, z };
+        }
+        final double[] rx = new double[kept];
+        final double[] rz = new double[kept];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                rx[j] = x[i];
+                rz[j] = z[i];
+                j++;
+            }
+        }
+        return new double[][] { rx, rz };
+    }
+
+    /**
+     * Mark the point between from and to (exclusive, to may be the ring length for the first
+     * point) that deviates most from the chord, and recurse into both sides.
+     */
+    private static void douglasPeucker(double[] x, double[] z, int from, int to, double squaredTolerance,
+                                       boolean[] keep) {
+        if (to - from < 2) {
+            return;
+        }
+        final int end = to % x.length;
+        final double ax = x[from];
+        final double az = z[from];
+        final double dx = x[end] - ax;
+        final double dz = z[end] - az;
+        final double length = dx * dx + dz * dz;
+        int worst = -1;
+        double worstDistance = squaredTolerance;
+        for (int i = from + 1; i < to; i++) {
+            double px = x[i] - ax;
+            double pz = z[i] - az;
+            if (length > 0) {
+                final double t = Math.max(0, Math.min(1, (px * dx + pz * dz) / length));
+                px -= t * dx;
+                pz -= t * dz;
+            }
+            final double d = px * px + pz * pz;
+            if (d > worstDistance) {
+                worstDistance = d;
+                worst = i;
+            }
+        }
+        if (worst >= 0) {
+            keep[worst] = true;
+            douglasPeucker(x, z, from, worst, squaredTolerance, keep);
+            douglasPeucker(x, z, worst, to, squaredTolerance, keep);
+        }
+    }
+
+    /**
+     * Group regions of the same world whose outlines overlap and union each group.
+     *
+     * @return one entry per group, in the order of each group's first region
+     */
+    static List<Merged> merge(List<UpdateSnapshot.Region> regions) {
+        final int n = regions.size();
+        final double[][] bounds = new double[n][];
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            bounds[i] = bounds(regions.get(i));
+            order[i] = i;
+        }
+        // Sweep over regions sorted by their western edge, only testing those that can overlap
+        Arrays.sort(order, Comparator.comparingDouble(i -> bounds[i][0]));
+        final int[] parent = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+        final Area[] areas = new Area[n];
+        for (int a = 0; a < n; a++) {
+            final int i = order[a];
+            for (int b = a + 1; b < n && bounds[order[b]][0] < bounds[i][1]; b++) {
+                final int j = order[b];
+                if (find(parent, i) == find(parent, j)
+                    || !regions.get(i).world.equals(regions.get(j).world)
+                    || bounds[j][2] >= bounds[i][3] || bounds[i][2] >= bounds[j][3]) {
+                    continue;
+                }
+                final Area overlap = new Area(area(areas, regions, i));
+                overlap.intersect(area(areas, regions, j));
+                if (!overlap.isEmpty()) {
+                    parent[find(parent, j)] = find(parent, i);
+                }
+            }
+        }
+        final List<Merged> merged = new ArrayList<>();
+        final Merged[] byRoot = new Merged[n];
+        for (int i = 0; i < n; i++) {
+            final int root = find(parent, i);
+            if (byRoot[root] == null) {
+                byRoot[root] = new Merged();
+                merged.add(byRoot[root]);
+            }
+            byRoot[root].members.add(regions.get(i));
+        }
+        for (final Merged m : merged) {
+            if (m.members.size() > 1) {
+                m.union();
+            }
+        }
+        return merged;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static double[] bounds(UpdateSnapshot.Region r) {
+        final double[] b = { Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int i = 0; i < r.x.length; i++) {
+            b[0] = Math.min(b[0], r.x[i]);
+            b[1] = Math.max(b[1], r.x[i]);
+            b[2] = Math.min(b[2], r.z[i]);
+            b[3] = Math.max(b[3], r.z[i]);
+        }
+        return b;
+    }
+
+    private static Area area(Area[] areas, List<UpdateSnapshot.Region> regions, int i) {
+        if (areas[i] == null) {
+            areas[i] = toArea(regions.get(i));
+        }
+        return areas[i];
+    }
+
+    private static Area toArea(UpdateSnapshot.Region r) {
+        final Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO, r.x.length);
+        path.moveTo(r.x[0], r.z[0]);
+        for (int i = 1; i < r.x.length; i++) {
+            path.lineTo(r.x[i], r.z[i]);
+        }
+        path.closePath();
+        return new Area(path);
+    }
+
+    /**
+     * Regions that overlap each other. The union outline is only set if it is a single ring
+     * without holes, otherwise the members are drawn on their own.
+     */
+    static final class Merged {
+        final List<UpdateSnapshot.Region> members = new ArrayList<>(1);
+        double[] x;
+        double[] z;
+        float minY;
+        float maxY;
+
+        boolean isUnion() {
+            return x != null;
+        }
+
+        private void union() {
+            final Area area = toArea(members.get(0));
+            minY = members.get(0).minY;
+            maxY = members.get(0).maxY;
+            for (int i = 1; i < members.size(); i++) {
+                area.add(toArea(members.get(i)));
+                minY = Math.min(minY, members.get(i).minY);
+                maxY = Math.max(maxY, members.get(i).maxY);
+            }
+            final double[] coords = new double[6];
+            final List<double[]> points = new ArrayList<>();
+            int rings = 0;
+            for (final PathIterator it = area.getPathIterator(null); !it.isDone(); it.next()) {
+                final int segment = it.currentSegment(coords);
+                if (segment == PathIterator.SEG_MOVETO) {
+                    rings++;
+                }
+                if (segment == PathIterator.SEG_MOVETO || segment == PathIterator.SEG_LINETO) {
+                    points.add(new double[] { coords[0], coords[1] });
+                }
+            }
+            if (rings != 1 || points.size() < 3) {
+                return;
+            }
+            x = new double[points.size()];
+            z = new double[points.size()];
+            for (int i = 0; i < points.size(); i++) {
+                x[i] = points.get(i)[0];
+                z[i] = points.get(i)[1];
+            }
+        }
+    }
+}
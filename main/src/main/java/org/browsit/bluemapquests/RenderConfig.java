@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.StringJoiner;
+import java.util.logging.Logger;
+
+/**
+ * Everything that decides how markers look, compiled once per (re)load. Instances are never
+ * modified, a reload swaps in a new one.
+ */
+final class RenderConfig {
+    // Layer settings by MarkerLayer ordinal
+    final boolean[] layerEnabled;
+    final String[] layerLabels;
+    final boolean[] layerHidden;
+    final int[] layerEvery;
+    // Bit mask of the NPC roles whose layer is enabled
+    final int enabledRoles;
+    final String[] roleIcons;
+    final String[] rolePrefixes;
+    // Label prefix of an NPC marker by role bit mask
+    final String[] npcHeads;
+    final String killAreaHead;
+    final String reachAreaHead;
+    final String regionHead;
+    final String clusterHead;
+    final MarkerStyle circleStyle;
+    final MarkerStyle areaStyle;
+    final double circleTolerance;
+    final int circleMinSegments;
+    final int circleMaxSegments;
+    final double simplifyTolerance;
+    final boolean removeCollinear;
+    final boolean mergeRegions;
+    final double clusterCellSize;
+    final int clusterMinSize;
+    final double clusterDistance;
+    // Ticks between samples of moving NPCs, 0 if they are only updated with everything else
+    final int trackingInterval;
+    final double trackingDeadBand;
+    final int trackingIdleSamples;
+    final int renderHeight;
+    final int minimumDistance;
+    final int maximumDistance;
+
+    /**
+     * @param roleIcons installed icon path per {@link UpdatePipeline.NpcRole}, in declaration order
+     */
+    RenderConfig(ConfigurationSection cfg, String[] roleIcons) {
+        final MarkerLayer[] layers = MarkerLayer.values();
+        layerEnabled = new boolean[layers.length];
+        layerLabels = new String[layers.length];
+        layerHidden = new boolean[layers.length];
+        layerEvery = new int[layers.length];
+        for (final MarkerLayer layer : layers) {
+            final String path = "layers." + layer.key;
+            layerEnabled[layer.ordinal()] = cfg.getBoolean(path + ".enabled", true);
+            layerLabels[layer.ordinal()] = cfg.getString(path + ".label", layer.defaultLabel);
+            layerHidden[layer.ordinal()] = cfg.getBoolean(path + ".hide-by-default", false);
+            layerEvery[layer.ordinal()] = Math.max(1, cfg.getInt(path + ".update-every", 1));
+        }
+        int mask = 0;
+        for (final UpdatePipeline.NpcRole role : UpdatePipeline.NpcRole.values()) {
+            if (isEnabled(MarkerLayer.of(role))) {
+                mask |= 1 << role.ordinal();
+            }
+        }
+        enabledRoles = mask;
+        this.roleIcons = roleIcons.clone();
+        rolePrefixes = new String[] {
+            cfg.getString("prefixes.start", "Start"),
+            cfg.getString("prefixes.interact", "Interact"),
+            cfg.getString("prefixes.kill", "Kill"),
+            cfg.getString("prefixes.delivery", "Delivery")
+        };
+        npcHeads = new String[1 << rolePrefixes.length];
+        for (int roles = 1; roles < npcHeads.length; roles++) {
+            // Always list the roles in the same order
+            final StringJoiner joiner = new StringJoiner(" / ", "Quest ", " NPC: ");
+            for (int role = 0; role < rolePrefixes.length; role++) {
+                if ((roles & (1 << role)) != 0) {
+                    joiner.add(rolePrefixes[role]);
+                }
+            }
+            npcHeads[roles] = joiner.toString();
+        }
+        killAreaHead = "Quest " + cfg.getString("prefixes.kill-area", "Kill Area") + ": ";
+        reachAreaHead = "Quest " + cfg.getString("prefixes.reach-area", "Reach Area") + ": ";
+        regionHead = "Quest " + cfg.getString("prefixes.wg-region", "WG Region") + ": ";
+        clusterHead = "Quest " + cfg.getString("prefixes.npc-cluster", "NPCs");
+        circleStyle = style(cfg, "circle", "0xFF9999", "0xFF9999");
+        areaStyle = style(cfg, "area", "0xFF0000", "0xFF0000");
+        circleTolerance = cfg.getDouble("circle.detail.tolerance", 0.5);
+        circleMinSegments = Math.max(4, cfg.getInt("circle.detail.min-segments", 8));
+        circleMaxSegments = Math.max(circleMinSegments, cfg.getInt("circle.detail.max-segments", 128));
+        simplifyTolerance = Math.max(0, cfg.getDouble("area.geometry.simplify-tolerance", 0));
+        removeCollinear = cfg.getBoolean("area.geometry.remove-collinear", true);
+        mergeRegions = cfg.getBoolean("area.geometry.merge-overlapping", false);
+        clusterCellSize = cfg.getBoolean("clustering.enabled", false)
+            ? Math.max(1, cfg.getDouble("clustering.cell-size", 64)) : 0;
+        clusterMinSize = Math.max(2, cfg.getInt("clustering.min-size", 3));
+        clusterDistance = cfg.getDouble("clustering.distance", 150);
+        trackingInterval = Math.max(0, cfg.getInt("tracking.interval", 10));
+        trackingDeadBand = Math.max(0, cfg.getDouble("tracking.dead-band", 2));
+        trackingIdleSamples = Math.max(1, cfg.getInt("tracking.idle-samples", 60));
+        renderHeight = cfg.getInt("render.height", 63);
+        minimumDistance = cfg.getInt("render.min-distance", 10);
+        maximumDistance = cfg.getInt("render.max-distance", 500);
+    }
+
+    boolean isEnabled(MarkerLayer layer) {
+        return layerEnabled[layer.ordinal()];
+    }
+
+    /**
+     * @return true if both configs enable the same layers, so that the same marker sets are used
+     */
+    boolean hasSameLayers(RenderConfig other) {
+        return Arrays.equals(layerEnabled, other.layerEnabled);
+    }
+
+    /**
+     * Carry the settings of the single marker set used before layers over to the layers, so a
+     * config saved by an older version keeps hiding its markers. Run before saving the config.
+     *
+     * @return true if the config was changed
+     */
+    static boolean migrate(ConfigurationSection cfg, Logger logger) {
+        final Object hidden = cfg.get("label.hide-by-default");
+        final Object name = cfg.get("label.name");
+        if (hidden == null && name == null) {
+            return false;
+        }
+        if (hidden instanceof Boolean) {
+            for (final MarkerLayer layer : MarkerLayer.values()) {
+                cfg.set("layers." + layer.key + ".hide-by-default", hidden);
+            }
+        }
+        if (name != null && !"Quests".equals(name)) {
+            logger.warning("label.name \"" + name + "\" no longer applies, markers are split into layers with "
+                + "a label each, set layers.<layer>.label instead");
+        }
+        cfg.set("label", null);
+        return true;
+    }
+
+    private static MarkerStyle style(ConfigurationSection cfg, String path, String fill, String line) {
+        return new MarkerStyle(
+            Color.decode(cfg.getString(path + ".line-style.color", line)),
+            (int) (cfg.getDouble(path + ".line-style.opacity", 0.8) * 255),
+            cfg.getInt(path + ".line-style.weight", 5),
+            Color.decode(cfg.getString(path + ".fill-style.color", fill)),
+            (int) (cfg.getDouble(path + ".fill-style.opacity", 0.35) * 255));
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import me.pikamug.quests.quests.Quest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives the update pipeline: full updates whose capture is spread over ticks, flushes of NPC
+ * changes reported by events, and samples of moving NPCs. Everything but the worker tasks runs on
+ * the server thread, and only one capture or worker task is in flight at a time.
+ */
+final class UpdateJob implements Runnable {
+    /**
+     * What the job needs from the server, so that it can also run without one.
+     */
+    interface Host {
+        /**
+         * @return false while markers can't be updated, e.g. because BlueMap is not loaded
+         */
+        boolean isReady();
+
+        /**
+         * Called on the server thread right before a full update starts.
+         *
+         * @return quests to capture
+         */
+        Collection<? extends Quest> prepareCapture();
+
+        /**
+         * Run a task on the server thread on every tick, starting with the next one.
+         *
+         * @return action cancelling the task
+         */
+        Runnable everyTick(Runnable task);
+    }
+
+    private final Host host;
+    private final UpdatePipeline pipeline;
+    private final MarkerSync sync;
+    private final DirtyQueue dirty;
+    private final UpdateStats stats;
+    private final ForkJoinPool workers;
+    private final AtomicBoolean building;
+    private final long tickBudget;
+    private final int eventBatchSize;
+    private final Logger logger;
+    private UpdatePipeline.Capture capture;
+    private Runnable stopSlicing;
+    // Tasks waiting for the next full update, and those waiting for the one in progress
+    private final List<Runnable> afterNextUpdate = new ArrayList<>();
+    private List<Runnable> afterCapture = new ArrayList<>();
+
+    /**
+     * @param building set while a capture or worker task is in flight, shared with the jobs of
+     *                 earlier activations so that a worker still busy for one of them holds off the next
+     * @param tickBudget nanoseconds per tick spent capturing, 0 for no limit
+     * @param eventBatchSize maximum number of NPCs applied per flush
+     */
+    UpdateJob(Host host, UpdatePipeline pipeline, MarkerSync sync, DirtyQueue dirty, UpdateStats stats,
+              ForkJoinPool workers, AtomicBoolean building, long tickBudget, int eventBatchSize, Logger logger) {
+        this.host = host;
+        this.pipeline = pipeline;
+        this.sync = sync;
+        this.dirty = dirty;
+        this.stats = stats;
+        this.workers = workers;
+        this.building = building;
+        this.tickBudget = tickBudget;
+        this.eventBatchSize = eventBatchSize;
+        this.logger = logger;
+    }
+
+    /**
+     * Run a task on a worker once a full update started after this call has been applied, e.g. to
+     * remove files the markers built before no longer reference.
+     */
+    void afterNextUpdate(Runnable task) {
+        afterNextUpdate.add(task);
+    }
+
+    /**
+     * @return true while a capture or worker task is in flight
+     */
+    boolean isBusy() {
+        return building.get();
+    }
+
+    /**
+     * Stop slicing and drop the capture in progress, nothing of it was handed to a worker yet.
+     * Like every other method, only call this on the server thread.
+     */
+    void cancel() {
+        if (capture != null) {
+            stopSlicing();
+            capture = null;
+            afterNextUpdate.addAll(0, afterCapture);
+            afterCapture = new ArrayList<>();
+            building.set(false);
+        }
+    }
+
+    /**
+     * Full consistency sweep over every loaded quest.
+     */
+    @Override
+    public void run() {
+        if (!host.isReady() || !building.compareAndSet(false, true)) {
+            // Previous cycle is still being built, skip this one
+            return;
+        }
+        try {
+            final Collection<? extends Quest> quests = host.prepareCapture();
+            // Everything queued so far is covered by this capture
+            dirty.clear();
+            capture = pipeline.beginCapture(quests);
+        } catch (RuntimeException e) {
+            building.set(false);
+            throw e;
+        }
+        afterCapture.addAll(afterNextUpdate);
+        afterNextUpdate.clear();
+        resume();
+    }
+
+    /**
+     * Apply changes queued by event listeners since the last flush.
+     */
+    void flush() {
+        if (dirty.isEmpty() || !host.isReady() || building.get()) {
+            // Leave the queue as is and retry on the next flush
+            return;
+        }
+        if (dirty.takeAll()) {
+            pipeline.refreshAll();
+            run();
+            return;
+        }
+        building.set(true);
+        final long start = System.nanoTime();
+        final UpdatePipeline.NpcChanges changes;
+        try {
+            changes = pipeline.captureNpcs(dirty.takeNpcs(eventBatchSize));
+        } catch (RuntimeException e) {
+            building.set(false);
+            throw e;
+        }
+        final long captured = System.nanoTime() - start;
+        if (changes.isEmpty()) {
+            stats.partial(UpdateStats.Partial.FLUSH, captured);
+            building.set(false);
+            return;
+        }
+        submit(() -> {
+            final long worker = System.nanoTime();
+            final Map<String, MarkerSpec> changed = new HashMap<>();
+            final Set<String> removed = new HashSet<>();
+            pipeline.build(changes, changed, removed);
+            sync.update(changed, removed);
+            stats.partial(UpdateStats.Partial.FLUSH, captured + System.nanoTime() - worker);
+        });
+    }
+
+    /**
+     * Let the markers of NPCs seen moving follow them between full updates.
+     */
+    void track() {
+        if (!host.isReady() || building.get()) {
+            // A cycle in progress shows the current positions anyway
+            return;
+        }
+        final long start = System.nanoTime();
+        final List<NpcTracker.Move> moves = new ArrayList<>();
+        final List<UUID> relocated = new ArrayList<>();
+        pipeline.trackNpcs(moves, relocated);
+        relocated.forEach(dirty::markNpc);
+        if (!moves.isEmpty()) {
+            // Only positions of existing markers change, too little to hand to a worker
+            sync.move(moves);
+        }
+        stats.partial(UpdateStats.Partial.TRACK, System.nanoTime() - start);
+    }
+
+    /**
+     * Continue the capture in progress within the tick budget, and hand it to a worker once it
+     * is complete.
+     */
+    private void resume() {
+        final boolean done;
+        try {
+            done = capture.step(tickBudget);
+        } catch (RuntimeException e) {
+            cancel();
+            throw e;
+        }
+        if (!done) {
+            if (stopSlicing == null) {
+                stopSlicing = host.everyTick(this::resume);
+            }
+            return;
+        }
+        stopSlicing();
+        final UpdateSnapshot snapshot = capture.finish();
+        final long captured = capture.getBusyNanos();
+        final List<Runnable> after = afterCapture;
+        capture = null;
+        afterCapture = new ArrayList<>();
+        submit(() -> {
+            final long worker = System.nanoTime();
+            final Map<String, MarkerSpec> desired = pipeline.build(snapshot);
+            final long built = System.nanoTime();
+            sync.apply(desired);
+            final long applied = System.nanoTime();
+            stats.phase(UpdateStats.Phase.APPLY, applied - built);
+            stats.cycle(captured + applied - worker);
+            after.forEach(Runnable::run);
+        });
+    }
+
+    private void stopSlicing() {
+        if (stopSlicing != null) {
+            stopSlicing.run();
+            stopSlicing = null;
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            workers.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.log(Level.SEVERE, "Error while building quest markers", t);
+                } finally {
+                    building.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            building.set(false);
+        }
+    }
+}
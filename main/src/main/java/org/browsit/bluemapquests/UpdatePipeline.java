@@ -0,0 +1,654 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import me.pikamug.quests.quests.Quest;
+import me.pikamug.quests.quests.components.Stage;
+import org.bukkit.ChatColor;
+import org.bukkit.Location;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Turns loaded quests into marker specs. Capturing reads live quest, NPC and region data and
+ * must run on the server thread; building only works on the captured snapshot.
+ */
+final class UpdatePipeline {
+    enum NpcRole { START, INTERACT, KILL, DELIVERY }
+
+    private final Supplier<RenderConfig> configSource;
+    private final NpcResolver npcResolver;
+    private final RegionCache regionCache;
+    private final UpdateStats stats;
+    private final Logger logger;
+    private final MarkerIds ids = new MarkerIds();
+    // Config of the last full capture, only replaced when the next one starts
+    private RenderConfig config;
+    private NpcClusters clusters;
+    private NpcTracker tracker;
+    // Labels of the last capture by marker id, as { head, name, label }
+    private Map<String, String[]> labels = new HashMap<>();
+    // Roles of quest NPCs as of the last full capture
+    private Map<UUID, int[]> npcRoles = new HashMap<>();
+    // Last full capture, layers that are not due take their markers from it
+    private UpdateSnapshot last;
+    // Full captures since each layer was last refreshed
+    private final int[] sinceRefresh = new int[MarkerLayer.values().length];
+    private boolean refreshAll = true;
+    // NPCs re-resolved by partial updates since the last full capture, newer than its copy
+    private final Set<UUID> resolvedSince = new HashSet<>();
+    // Regions given to the last merge and its result, reused while no region changes
+    private List<UpdateSnapshot.Region> mergeInput = new ArrayList<>();
+    private List<RegionGeometry.Merged> mergeOutput = new ArrayList<>();
+
+    /**
+     * @param configSource current render config, checked for a new one at the start of every full capture
+     * @param regionCache region lookup, or null if WorldGuard is not installed
+     */
+    UpdatePipeline(Supplier<RenderConfig> configSource, NpcResolver npcResolver, RegionCache regionCache,
+                   UpdateStats stats, Logger logger) {
+        this.configSource = configSource;
+        this.npcResolver = npcResolver;
+        this.regionCache = regionCache;
+        this.stats = stats;
+        this.logger = logger;
+    }
+
+    /**
+     * Copy everything needed from quests, NPCs and regions in one go. Runs on the server thread.
+     */
+    UpdateSnapshot capture(Collection<? extends Quest> quests) {
+        final Capture capture = new Capture(quests);
+        capture.step(0);
+        return capture.finish();
+    }
+
+    /**
+     * Start a capture that can be spread over several ticks. Only one capture may be in progress
+     * at a time.
+     */
+    Capture beginCapture(Collection<? extends Quest> quests) {
+        return new Capture(quests);
+    }
+
+    /**
+     * @return number of entries in each cache kept between captures, to tell whether they only
+     *         hold what the loaded quests reference
+     */
+    Map<String, Integer> cacheSizes() {
+        final Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("ids", ids.size());
+        sizes.put("labels", labels.size());
+        sizes.put("npc-roles", npcRoles.size());
+        sizes.put("npc-owners", npcResolver.size());
+        sizes.put("tracked", tracker != null ? tracker.size() : 0);
+        sizes.put("outlines", regionCache != null ? regionCache.size() : 0);
+        return sizes;
+    }
+
+    /**
+     * Refresh every enabled layer on the next full capture, regardless of its update interval.
+     */
+    void refreshAll() {
+        refreshAll = true;
+    }
+
+    /**
+     * Re-resolve some NPCs using the roles known from the last full capture. Runs on the
+     * server thread.
+     *
+     * @param uuids NPCs that may have changed
+     */
+    NpcChanges captureNpcs(Collection<UUID> uuids) {
+        final NpcChanges changes = new NpcChanges();
+        if (config == null) {
+            // Nothing captured yet, the first full capture picks these NPCs up anyway
+            return changes;
+        }
+        npcResolver.refresh();
+        for (final UUID uuid : uuids) {
+            final int[] roles = npcRoles.get(uuid);
+            if (roles == null) {
+                // Not referenced by any quest
+                continue;
+            }
+            resolvedSince.add(uuid);
+            final NpcLocator.Located located = npcResolver.locate(uuid);
+            for (int rest = roles[0]; rest != 0; rest &= rest - 1) {
+                final MarkerLayer layer = roleLayer(rest);
+                if (located != null) {
+                    final UpdateSnapshot.Npc npc = npcSnapshot(uuid, layer, located, roles[0], labels);
+                    changes.changed.add(npc);
+                    if (tracker != null) {
+                        tracker.shown(uuid, npc, null);
+                    }
+                } else {
+                    changes.removed.add(ids.npc(uuid, layer));
+                }
+            }
+            if (located == null && tracker != null) {
+                tracker.forget(uuid);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Sample the NPCs that were seen moving between full captures. Runs on the server thread.
+     *
+     * @param moves receives NPCs whose marker can be moved in place
+     * @param relocated receives NPCs that need to be re-resolved with {@link #captureNpcs}
+     */
+    void trackNpcs(List<NpcTracker.Move> moves, Collection<UUID> relocated) {
+        if (tracker == null || tracker.isEmpty()) {
+            return;
+        }
+        // No refresh, locators keep the state of the last capture between samples, which may be costly
+        // to rebuild. NPCs they no longer find are re-resolved after a refresh by captureNpcs.
+        tracker.sample(npcResolver, moves, relocated);
+        if (clusters != null) {
+            // A move may join or leave a cluster, which only the partial update keeps track of
+            for (final NpcTracker.Move move : moves) {
+                relocated.add(move.uuid);
+            }
+            moves.clear();
+        }
+        for (final NpcTracker.Move move : moves) {
+            resolvedSince.add(move.uuid);
+        }
+    }
+
+    /**
+     * Turn a snapshot into marker specs. Safe to run on a worker thread.
+     */
+    Map<String, MarkerSpec> build(UpdateSnapshot snapshot) {
+        final long start = System.nanoTime();
+        final Map<String, MarkerSpec> desired = new HashMap<>();
+        for (final UpdateSnapshot.Circle c : snapshot.getCircles()) {
+            final int segments = CircleGeometry.segments(c.radius, config.circleTolerance,
+                config.circleMinSegments, config.circleMaxSegments);
+            desired.put(c.id, MarkerSpec.circle(c.layer, c.world, c.label, c.x, c.y, c.z, c.radius, segments,
+                config.circleStyle, config.minimumDistance, config.maximumDistance));
+        }
+        if (clusters != null) {
+            clusters.rebuild(snapshot.getNpcs(), desired);
+        } else {
+            desired.putAll(build(snapshot.getNpcs()));
+        }
+        if (config.mergeRegions) {
+            for (final RegionGeometry.Merged m : merge(snapshot.getRegions())) {
+                if (!m.isUnion()) {
+                    for (final UpdateSnapshot.Region r : m.members) {
+                        desired.put(r.id, regionSpec(r.world, r.label, r.x, r.z, r.minY, r.maxY));
+                    }
+                    continue;
+                }
+                final StringJoiner names = new StringJoiner(", ", config.regionHead, "");
+                for (final UpdateSnapshot.Region r : m.members) {
+                    names.add(r.name);
+                }
+                final UpdateSnapshot.Region first = m.members.get(0);
+                desired.put(first.id, regionSpec(first.world, names.toString(), m.x, m.z, m.minY, m.maxY));
+            }
+        } else {
+            for (final UpdateSnapshot.Region r : snapshot.getRegions()) {
+                desired.put(r.id, regionSpec(r.world, r.label, r.x, r.z, r.minY, r.maxY));
+            }
+        }
+        stats.phase(UpdateStats.Phase.BUILD, System.nanoTime() - start);
+        return desired;
+    }
+
+    /**
+     * Turn NPC snapshots into marker specs. Safe to run on a worker thread.
+     */
+    Map<String, MarkerSpec> build(List<UpdateSnapshot.Npc> npcs) {
+        final Map<String, MarkerSpec> specs = new HashMap<>();
+        for (final UpdateSnapshot.Npc n : npcs) {
+            specs.put(n.id, MarkerSpec.poi(n.layer, n.world, n.label, n.x, n.y, n.z, n.icon,
+                config.minimumDistance, config.maximumDistance));
+        }
+        return specs;
+    }
+
+    /**
+     * Turn re-resolved NPCs into marker changes, including clusters they join or leave. Safe to
+     * run on a worker thread.
+     *
+     * @param changed receives specs of markers to add or update
+     * @param removed receives ids of markers to drop
+     */
+    void build(NpcChanges changes, Map<String, MarkerSpec> changed, Collection<String> removed) {
+        if (clusters != null) {
+            clusters.update(changes.changed, changes.removed, changed, removed);
+        } else {
+            changed.putAll(build(changes.changed));
+            removed.addAll(changes.removed);
+        }
+    }
+
+    /**
+     * Switch to the current render config if it was replaced since the last full capture. Labels
+     * built from the old heads no longer match by identity and are rebuilt on the way.
+     */
+    private void configure() {
+        final RenderConfig next = configSource.get();
+        if (next == config) {
+            return;
+        }
+        if (regionCache != null && (config == null || config.simplifyTolerance != next.simplifyTolerance
+            || config.removeCollinear != next.removeCollinear)) {
+            regionCache.setSimplification(next.simplifyTolerance, next.removeCollinear);
+        }
+        clusters = next.clusterCellSize > 0
+            ? new NpcClusters(next.clusterCellSize, next.clusterMinSize, next.clusterDistance, next.clusterHead,
+                next.minimumDistance, next.maximumDistance)
+            : null;
+        tracker = next.trackingInterval > 0 ? new NpcTracker(next.trackingDeadBand, next.trackingIdleSamples) : null;
+        config = next;
+        refreshAll = true;
+    }
+
+    private MarkerSpec regionSpec(UUID world, String label, double[] x, double[] z, float minY, float maxY) {
+        return MarkerSpec.extrude(world, label, x, z, config.renderHeight, minY, maxY, config.areaStyle,
+            config.minimumDistance, config.maximumDistance);
+    }
+
+    /**
+     * Merge overlapping regions, reusing the previous result if every region is unchanged.
+     */
+    private List<RegionGeometry.Merged> merge(List<UpdateSnapshot.Region> regions) {
+        boolean same = regions.size() == mergeInput.size();
+        for (int i = 0; same && i < regions.size(); i++) {
+            final UpdateSnapshot.Region r = regions.get(i);
+            final UpdateSnapshot.Region previous = mergeInput.get(i);
+            // Outlines are cached per region revision, so unchanged regions share their arrays
+            same = r.x == previous.x && r.z == previous.z && r.id.equals(previous.id)
+                && r.label.equals(previous.label) && r.world.equals(previous.world)
+                && r.minY == previous.minY && r.maxY == previous.maxY;
+        }
+        if (!same) {
+            mergeOutput = RegionGeometry.merge(regions);
+            mergeInput = regions;
+        }
+        return mergeOutput;
+    }
+
+    /**
+     * @param layer layer of the marker, one per role of the NPC
+     * @param roles all roles of the NPC, which every one of its markers lists
+     */
+    private UpdateSnapshot.Npc npcSnapshot(UUID uuid, MarkerLayer layer, NpcLocator.Located l, int roles,
+                                           Map<String, String[]> target) {
+        final String id = ids.npc(uuid, layer);
+        final String label = label(id, config.npcHeads[roles], l.name, true, target);
+        return new UpdateSnapshot.Npc(id, layer, label, l.world, l.x, l.y, l.z, config.roleIcons[layer.ordinal()]);
+    }
+
+    /**
+     * @return layer of the lowest role in the bit mask
+     */
+    private static MarkerLayer roleLayer(int roles) {
+        return MarkerLayer.of(NpcRole.values()[Integer.numberOfTrailingZeros(roles)]);
+    }
+
+    /**
+     * Reuse the label from the previous capture unless its parts changed.
+     */
+    private String label(String id, String head, String name, boolean stripColor, Map<String, String[]> target) {
+        String[] cached = labels.get(id);
+        if (cached == null || cached[0] != head || !Objects.equals(cached[1], name)) {
+            cached = new String[] { head, name, head + (stripColor ? ChatColor.stripColor(name) : name) };
+        }
+        target.put(id, cached);
+        return cached[2];
+    }
+
+    /**
+     * Resumable walk over quests, stages and objectives, followed by resolving the referenced
+     * NPCs. Runs on the server thread.
+     */
+    final class Capture {
+        private final List<Quest> quests;
+        private final Set<String> seenQuests = new HashSet<>();
+        private final Set<String> seenRegions = new HashSet<>();
+        private final List<UpdateSnapshot.Circle> circles = new ArrayList<>();
+        private final List<UpdateSnapshot.Region> regions = new ArrayList<>();
+        private final List<RegionCache.Outline> outlines = new ArrayList<>();
+        private final Map<UUID, int[]> refs = new LinkedHashMap<>();
+        private final Map<String, String[]> nextLabels = new HashMap<>();
+        private final List<UpdateSnapshot.Npc> npcs = new ArrayList<>();
+        // Layers refreshed by this capture, the others keep their markers from the last one
+        private final boolean[] due = new boolean[MarkerLayer.values().length];
+        private Map<String, UpdateSnapshot.Npc> lastNpcs;
+        private int nextQuest;
+        private Iterator<Map.Entry<UUID, int[]>> pendingNpcs;
+        private int resolvedNpcs;
+        private long questNanos;
+        private long regionNanos;
+        private long npcNanos;
+
+        private Capture(Collection<? extends Quest> quests) {
+            configure();
+            this.quests = new ArrayList<>(quests);
+            for (final MarkerLayer layer : MarkerLayer.values()) {
+                final int i = layer.ordinal();
+                if (!config.isEnabled(layer)) {
+                    continue;
+                }
+                if (refreshAll || last == null || ++sinceRefresh[i] >= config.layerEvery[i]) {
+                    due[i] = true;
+                    sinceRefresh[i] = 0;
+                }
+            }
+            refreshAll = false;
+            if (regionCache != null && isDue(MarkerLayer.REGION)) {
+                regionCache.beginLookups();
+            }
+        }
+
+        private boolean isDue(MarkerLayer layer) {
+            return due[layer.ordinal()];
+        }
+
+        /**
+         * Do as much work as fits into the budget, always at least one quest or NPC.
+         *
+         * @param budgetNanos time to spend, 0 for no limit
+         * @return true once everything is captured
+         */
+        boolean step(long budgetNanos) {
+            final long start = System.nanoTime();
+            try {
+                while (nextQuest < quests.size()) {
+                    visit(quests.get(nextQuest++));
+                    final long elapsed = System.nanoTime() - start;
+                    if (budgetNanos > 0 && elapsed >= budgetNanos && nextQuest < quests.size()) {
+                        questNanos += elapsed;
+                        return false;
+                    }
+                }
+                if (pendingNpcs == null) {
+                    ids.retainQuests(seenQuests);
+                    ids.retainNpcs(refs.keySet());
+                    npcResolver.retain(refs.keySet());
+                    if (regionCache != null && isDue(MarkerLayer.REGION)) {
+                        ids.retainRegions(seenRegions);
+                        regionCache.retain(seenRegions);
+                    }
+                    npcResolver.refresh();
+                    pendingNpcs = refs.entrySet().iterator();
+                    final long traversed = System.nanoTime();
+                    questNanos += traversed - start;
+                    stats.phase(UpdateStats.Phase.QUESTS, questNanos - regionNanos);
+                    stats.phase(UpdateStats.Phase.REGIONS, regionNanos);
+                    if (budgetNanos > 0 && traversed - start >= budgetNanos) {
+                        // Resolve NPCs on the next tick
+                        return false;
+                    }
+                    return resolve(traversed, budgetNanos > 0 ? budgetNanos - (traversed - start) : 0);
+                }
+                return resolve(start, budgetNanos);
+            } finally {
+                stats.progress(getDone(), getTotal());
+            }
+        }
+
+        /**
+         * @return time spent capturing so far
+         */
+        long getBusyNanos() {
+            return questNanos + npcNanos;
+        }
+
+        /**
+         * @return quests visited plus NPCs resolved
+         */
+        int getDone() {
+            return nextQuest + resolvedNpcs;
+        }
+
+        /**
+         * @return quests to visit plus NPCs found so far
+         */
+        int getTotal() {
+            return quests.size() + refs.size();
+        }
+
+        UpdateSnapshot finish() {
+            if (pendingNpcs == null || pendingNpcs.hasNext()) {
+                throw new IllegalStateException("Capture is not complete");
+            }
+            if (last != null) {
+                carryOver();
+            }
+            npcRoles = refs;
+            labels = nextLabels;
+            if (tracker != null) {
+                tracker.retain(refs.keySet());
+            }
+            resolvedSince.clear();
+            stats.phase(UpdateStats.Phase.NPCS, npcNanos);
+            stats.progress(0, 0);
+            last = new UpdateSnapshot(circles, npcs, regions);
+            return last;
+        }
+
+        /**
+         * Take circles and regions of enabled layers that are not due from the last capture.
+         */
+        private void carryOver() {
+            for (final UpdateSnapshot.Circle c : last.getCircles()) {
+                if (!isDue(c.layer) && config.isEnabled(c.layer)) {
+                    circles.add(c);
+                    keepLabel(c.id);
+                }
+            }
+            if (!isDue(MarkerLayer.REGION) && config.isEnabled(MarkerLayer.REGION)) {
+                for (final UpdateSnapshot.Region r : last.getRegions()) {
+                    regions.add(r);
+                    keepLabel(r.id);
+                }
+            }
+        }
+
+        private void keepLabel(String id) {
+            final String[] label = labels.get(id);
+            if (label != null) {
+                nextLabels.put(id, label);
+            }
+        }
+
+        /**
+         * @return true if markers of the NPC in layers that are not due can be taken from the last
+         *         capture, because neither its roles nor anything reported by events changed
+         */
+        private boolean isReusable(UUID uuid, int roles) {
+            if (last == null || resolvedSince.contains(uuid)) {
+                return false;
+            }
+            final int[] lastRoles = npcRoles.get(uuid);
+            return lastRoles != null && lastRoles[0] == roles;
+        }
+
+        /**
+         * @return the NPC as of the last capture, or null
+         */
+        private UpdateSnapshot.Npc lastNpc(String id) {
+            if (last == null) {
+                return null;
+            }
+            if (lastNpcs == null) {
+                lastNpcs = new HashMap<>();
+                for (final UpdateSnapshot.Npc n : last.getNpcs()) {
+                    lastNpcs.put(n.id, n);
+                }
+            }
+            return lastNpcs.get(id);
+        }
+
+        private boolean resolve(long start, long budgetNanos) {
+            try {
+                // Resolve every referenced NPC once, no matter how many objectives point at it
+                while (pendingNpcs.hasNext()) {
+                    final Map.Entry<UUID, int[]> entry = pendingNpcs.next();
+                    final UUID uuid = entry.getKey();
+                    final int roles = entry.getValue()[0];
+                    final boolean reusable = isReusable(uuid, roles);
+                    NpcLocator.Located located = null;
+                    boolean looked = false;
+                    // One marker per role, so hiding one layer leaves the NPC's other roles visible
+                    for (int rest = roles; rest != 0; rest &= rest - 1) {
+                        final MarkerLayer layer = roleLayer(rest);
+                        final UpdateSnapshot.Npc previous = lastNpc(ids.npc(uuid, layer));
+                        if (reusable && !isDue(layer) && previous != null) {
+                            keepLabel(previous.id);
+                            npcs.add(previous);
+                            continue;
+                        }
+                        if (!looked) {
+                            located = npcResolver.locate(uuid);
+                            looked = true;
+                        }
+                        if (located != null) {
+                            final UpdateSnapshot.Npc npc = npcSnapshot(uuid, layer, located, roles, nextLabels);
+                            npcs.add(npc);
+                            if (tracker != null) {
+                                tracker.shown(uuid, npc, previous);
+                            }
+                        }
+                    }
+                    resolvedNpcs++;
+                    if (budgetNanos > 0 && System.nanoTime() - start >= budgetNanos && pendingNpcs.hasNext()) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                npcNanos += System.nanoTime() - start;
+            }
+        }
+
+        private void visit(Quest q) {
+            final String questId = q.getId();
+            seenQuests.add(questId);
+            if (!npcResolver.isEmpty() && q.getNpcStart() != null) {
+                npcMarker(q.getNpcStart(), NpcRole.START);
+            }
+            final boolean killAreas = isDue(MarkerLayer.KILL_AREA);
+            final boolean reachAreas = isDue(MarkerLayer.REACH_AREA);
+            int stageIndex = 0;
+            for (final Stage s : q.getStages()) {
+                int killIndex = 0;
+                for (final Object obj : killAreas ? s.getLocationsToKillWithin() : Collections.emptyList()) {
+                    final Location location = (Location) obj;
+                    final int radius = s.getRadiiToKillWithin().get(killIndex);
+                    final String name = s.getKillNames().get(killIndex);
+                    cirMarker(ids.objective(questId, stageIndex, MarkerIds.Objective.KILL_AREA, killIndex),
+                        MarkerLayer.KILL_AREA, location, radius, name, config.killAreaHead);
+                    killIndex++;
+                }
+                int reachIndex = 0;
+                for (final Object obj : reachAreas ? s.getLocationsToReach() : Collections.emptyList()) {
+                    final Location location = (Location) obj;
+                    final int radius = s.getRadiiToReachWithin().get(reachIndex);
+                    final String name = s.getLocationNames().get(reachIndex);
+                    cirMarker(ids.objective(questId, stageIndex, MarkerIds.Objective.REACH_AREA, reachIndex),
+                        MarkerLayer.REACH_AREA, location, radius, name, config.reachAreaHead);
+                    reachIndex++;
+                }
+                if (!npcResolver.isEmpty()) {
+                    for (final UUID i : s.getNpcsToInteract()) {
+                        npcMarker(i, NpcRole.INTERACT);
+                    }
+                    for (final UUID i : s.getNpcsToKill()) {
+                        npcMarker(i, NpcRole.KILL);
+                    }
+                    for (final UUID i : s.getItemDeliveryTargets()) {
+                        npcMarker(i, NpcRole.DELIVERY);
+                    }
+                }
+                stageIndex++;
+            }
+            if (regionCache != null && isDue(MarkerLayer.REGION) && q.getRegionStart() != null) {
+                final String r = q.getRegionStart();
+                if (seenRegions.add(r)) {
+                    areaMarker(r);
+                }
+            }
+        }
+
+        private void npcMarker(UUID uuid, NpcRole role) {
+            if ((config.enabledRoles & (1 << role.ordinal())) == 0) {
+                return;
+            }
+            // Merge roles of NPCs referenced by several objectives into one marker
+            final int[] roles = refs.get(uuid);
+            if (roles == null) {
+                refs.put(uuid, new int[] { 1 << role.ordinal() });
+            } else {
+                roles[0] |= 1 << role.ordinal();
+            }
+        }
+
+        private void cirMarker(String id, MarkerLayer layer, Location l, double radius, String name, String head) {
+            if (l.getWorld() != null) {
+                circles.add(new UpdateSnapshot.Circle(id, layer, label(id, head, name, false, nextLabels),
+                    l.getWorld().getUID(), l.getX(), l.getY(), l.getZ(), radius));
+            }
+        }
+
+        private void areaMarker(String regionId) {
+            final long start = System.nanoTime();
+            try {
+                outlines.clear();
+                regionCache.get(regionId, outlines);
+                // One marker in every world that defines a region with this id
+                for (final RegionCache.Outline outline : outlines) {
+                    final String id = ids.region(outline.world, regionId);
+                    regions.add(new UpdateSnapshot.Region(id, regionId,
+                        label(id, config.regionHead, regionId, false, nextLabels), outline.world, outline.x, outline.z,
+                        outline.minY, outline.maxY));
+                }
+            } catch (NoSuchMethodError e) {
+                logger.severe("Unsupported version of WorldGuard");
+                e.printStackTrace();
+            } finally {
+                regionNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    static final class NpcChanges {
+        final List<UpdateSnapshot.Npc> changed = new ArrayList<>();
+        final Set<String> removed = new HashSet<>();
+
+        boolean isEmpty() {
+            return changed.isEmpty() && removed.isEmpty();
+        }
+    }
+}
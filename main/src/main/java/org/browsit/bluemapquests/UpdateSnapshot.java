@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Plain copy of the quest, NPC and region data needed to build markers. Captured on the
+ * server thread so that markers can be built on a worker thread without touching live objects.
+ */
+final class UpdateSnapshot {
+    private final List<Circle> circles;
+    private final List<Npc> npcs;
+    private final List<Region> regions;
+
+    UpdateSnapshot(List<Circle> circles, List<Npc> npcs, List<Region> regions) {
+        this.circles = Collections.unmodifiableList(new ArrayList<>(circles));
+        this.npcs = Collections.unmodifiableList(new ArrayList<>(npcs));
+        this.regions = Collections.unmodifiableList(new ArrayList<>(regions));
+    }
+
+    List<Circle> getCircles() {
+        return circles;
+    }
+
+    List<Npc> getNpcs() {
+        return npcs;
+    }
+
+    List<Region> getRegions() {
+        return regions;
+    }
+
+    static final class Circle {
+        final String id;
+        final MarkerLayer layer;
+        final String label;
+        final UUID world;
+        final double x;
+        final double y;
+        final double z;
+        final double radius;
+
+        Circle(String id, MarkerLayer layer, String label, UUID world, double x, double y, double z, double radius) {
+            this.id = id;
+            this.layer = layer;
+            this.label = label;
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.radius = radius;
+        }
+    }
+
+    static final class Npc {
+        final String id;
+        final MarkerLayer layer;
+        final String label;
+        final UUID world;
+        final double x;
+        final double y;
+        final double z;
+        final String icon;
+
+        Npc(String id, MarkerLayer layer, String label, UUID world, double x, double y, double z, String icon) {
+            this.id = id;
+            this.layer = layer;
+            this.label = label;
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.icon = icon;
+        }
+    }
+
+    static final class Region {
+        final String id;
+        final String name;
+        final String label;
+        final UUID world;
+        final double[] x;
+        final double[] z;
+        final float minY;
+        final float maxY;
+
+        Region(String id, String name, String label, UUID world, double[] x, double[] z, float minY, float maxY) {
+            this.id = id;
+            this.name = name;
+            this.label = label;
+            this.world = world;
+            this.x = x;
+            this.z = z;
+            this.minY = minY;
+            this.maxY = maxY;
+        }
+    }
+}
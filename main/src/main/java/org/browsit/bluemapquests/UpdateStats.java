@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2021 Browsit, LLC. All rights reserved.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+ * NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.browsit.bluemapquests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timings and marker counts of the update cycles. Recording is a handful of additions under a
+ * lock taken a few times per cycle, so it is cheap enough to stay on all the time.
+ */
+final class UpdateStats {
+    enum Phase {
+        QUESTS("quest traversal"),
+        NPCS("NPC resolution"),
+        REGIONS("region lookup"),
+        BUILD("marker build"),
+        APPLY("marker apply");
+
+        private final String description;
+
+        Phase(String description) {
+            this.description = description;
+        }
+    }
+
+    /**
+     * Updates between full cycles, timed apart so that they don't mix with the phases of the
+     * last full cycle.
+     */
+    enum Partial {
+        FLUSH("event flushes"),
+        TRACK("tracking samples");
+
+        private final String description;
+
+        Partial(String description) {
+            this.description = description;
+        }
+    }
+
+    private static final int WINDOW = 256;
+
+    private final long[] lastPhase = new long[Phase.values().length];
+    private final long[] totalPhase = new long[Phase.values().length];
+    private final long[] partialCount = new long[Partial.values().length];
+    private final long[] lastPartial = new long[Partial.values().length];
+    private final long[] totalPartial = new long[Partial.values().length];
+    // Ring buffer of the most recent cycle times, for percentiles
+    private final long[] cycleTimes = new long[WINDOW];
+    private int cycleIndex;
+    private long cycles;
+    private long added;
+    private long updated;
+    private long removed;
+    private long unchanged;
+    private int progressDone;
+    private int progressTotal;
+
+    synchronized void phase(Phase phase, long nanos) {
+        lastPhase[phase.ordinal()] = nanos;
+        totalPhase[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * @param nanos time one partial update took, including the worker
+     */
+    synchronized void partial(Partial partial, long nanos) {
+        partialCount[partial.ordinal()]++;
+        lastPartial[partial.ordinal()] = nanos;
+        totalPartial[partial.ordinal()] += nanos;
+    }
+
+    synchronized void markers(int added, int updated, int removed, int unchanged) {
+        this.added += added;
+        this.updated += updated;
+        this.removed += removed;
+        this.unchanged += unchanged;
+    }
+
+    /**
+     * Publish how far the cycle in progress got, 0 of 0 once it is done.
+     */
+    synchronized void progress(int done, int total) {
+        progressDone = done;
+        progressTotal = total;
+    }
+
+    /**
+     * @param nanos time spent in one full cycle, not counting time waiting for a worker
+     */
+    synchronized void cycle(long nanos) {
+        cycleTimes[cycleIndex] = nanos;
+        cycleIndex = (cycleIndex + 1) % WINDOW;
+        cycles++;
+    }
+
+    synchronized Snapshot snapshot() {
+        final int size = (int) Math.min(cycles, WINDOW);
+        final long[] sorted = Arrays.copyOf(cycleTimes, size);
+        Arrays.sort(sorted);
+        return new Snapshot(cycles, lastPhase.clone(), totalPhase.clone(), partialCount.clone(), lastPartial.clone(),
+            totalPartial.clone(), added, updated, removed, unchanged, percentile(sorted, 50), percentile(sorted, 95),
+            percentile(sorted, 99), progressDone, progressTotal);
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    static final class Snapshot {
+        private static final String[] COLUMNS = { "cycles", "p50_ms", "p95_ms", "p99_ms", "added", "updated",
+            "removed", "unchanged" };
+
+        final long cycles;
+        final long[] lastPhase;
+        final long[] totalPhase;
+        final long[] partialCount;
+        final long[] lastPartial;
+        final long[] totalPartial;
+        final long added;
+        final long updated;
+        final long removed;
+        final long unchanged;
+        final long p50;
+        final long p95;
+        final long p99;
+        final int progressDone;
+        final int progressTotal;
+
+        private Snapshot(long cycles, long[] lastPhase, long[] totalPhase, long[] partialCount, long[] lastPartial,
+                         long[] totalPartial, long added, long updated, long removed, long unchanged, long p50,
+                         long p95, long p99, int progressDone, int progressTotal) {
+            this.cycles = cycles;
+            this.lastPhase = lastPhase;
+            this.totalPhase = totalPhase;
+            this.partialCount = partialCount;
+            this.lastPartial = lastPartial;
+            this.totalPartial = totalPartial;
+            this.added = added;
+            this.updated = updated;
+            this.removed = removed;
+            this.unchanged = unchanged;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.progressDone = progressDone;
+            this.progressTotal = progressTotal;
+        }
+
+        /**
+         * @return human readable summary, one entry per chat line
+         */
+        List<String> describe() {
+            final List<String> lines = new ArrayList<>();
+            lines.add("Update cycles: " + cycles + ", cycle time p50 " + millis(p50) + " ms, p95 " + millis(p95)
+                + " ms, p99 " + millis(p99) + " ms");
+            for (final Phase phase : Phase.values()) {
+                lines.add("  " + phase.description + ": last " + millis(lastPhase[phase.ordinal()]) + " ms, total "
+                    + millis(totalPhase[phase.ordinal()]) + " ms");
+            }
+            for (final Partial partial : Partial.values()) {
+                lines.add("Between cycles, " + partial.description + ": " + partialCount[partial.ordinal()] + ", last "
+                    + millis(lastPartial[partial.ordinal()]) + " ms, total " + millis(totalPartial[partial.ordinal()])
+                    + " ms");
+            }
+            if (progressTotal > 0) {
+                lines.add("Cycle in progress: " + progressDone + " of " + progressTotal + " quests and NPCs ("
+                    + progressDone * 100L / progressTotal + "%)");
+            }
+            lines.add("Markers added " + added + ", updated " + updated + ", removed " + removed + ", unchanged "
+                + unchanged);
+            return lines;
+        }
+
+        static String csvHeader() {
+            final StringBuilder sb = new StringBuilder("time");
+            for (final String column : COLUMNS) {
+                sb.append(',').append(column);
+            }
+            for (final Phase phase : Phase.values()) {
+                final String name = phase.name().toLowerCase(Locale.ROOT);
+                sb.append(',').append(name).append("_last_ms,").append(name).append("_total_ms");
+            }
+            for (final Partial partial : Partial.values()) {
+                final String name = partial.name().toLowerCase(Locale.ROOT);
+                sb.append(',').append(name).append("_count,").append(name).append("_last_ms,").append(name)
+                    .append("_total_ms");
+            }
+            return sb.toString();
+        }
+
+        String csvRow(long time) {
+            final StringBuilder sb = new StringBuilder().append(time);
+            for (final Object value : values()) {
+                sb.append(',').append(value);
+            }
+            for (final Phase phase : Phase.values()) {
+                sb.append(',').append(millis(lastPhase[phase.ordinal()]))
+                    .append(',').append(millis(totalPhase[phase.ordinal()]));
+            }
+            for (final Partial partial : Partial.values()) {
+                sb.append(',').append(partialCount[partial.ordinal()])
+                    .append(',').append(millis(lastPartial[partial.ordinal()]))
+                    .append(',').append(millis(totalPartial[partial.ordinal()]));
+            }
+            return sb.toString();
+        }
+
+        String json(long time) {
+            final StringBuilder sb = new StringBuilder("{\"time\":").append(time);
+            final Object[] values = values();
+            for (int i = 0; i < COLUMNS.length; i++) {
+                sb.append(",\"").append(COLUMNS[i]).append("\":").append(values[i]);
+            }
+            sb.append(",\"phases\":{");
+            for (final Phase phase : Phase.values()) {
+                if (phase.ordinal() > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(phase.name().toLowerCase(Locale.ROOT)).append("\":{\"last_ms\":")
+                    .append(millis(lastPhase[phase.ordinal()])).append(",\"total_ms\":")
+                    .append(millis(totalPhase[phase.ordinal()])).append('}');
+            }
+            sb.append("},\"partial\":{");
+            for (final Partial partial : Partial.values()) {
+                if (partial.ordinal() > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(partial.name().toLowerCase(Locale.ROOT)).append("\":{\"count\":")
+                    .append(partialCount[partial.ordinal()]).append(",\"last_ms\":")
+                    .append(millis(lastPartial[partial.ordinal()])).append(",\"total_ms\":")
+                    .append(millis(totalPartial[partial.ordinal()])).append('}');
+            }
+            return sb.append("}}").toString();
+        }
+
+        private Object[] values() {
+            return new Object[] { cycles, millis(p50), millis(p95), millis(p99), added, updated, removed, unchanged };
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+    }
+}
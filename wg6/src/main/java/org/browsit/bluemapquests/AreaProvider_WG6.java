@@ -12,9 +12,7 @@
 
 package org.browsit.bluemapquests;
 
-import java.util.AbstractMap;
 import java.util.List;
-import java.util.Map.Entry;
 
 import com.sk89q.worldedit.BlockVector;
 import com.sk89q.worldedit.BlockVector2D;
@@ -24,43 +22,34 @@ import com.sk89q.worldguard.protection.regions.RegionType;
 
 public class AreaProvider_WG6 extends AreaProvider {
     @Override
-    Entry<double[], double[]> get(ProtectedRegion region) {
+    boolean supports(String worldGuardVersion) {
+        return worldGuardVersion.startsWith("6") || worldGuardVersion.startsWith("5");
+    }
+
+    @Override
+    boolean outline(ProtectedRegion region, OutlineBuffer out) {
         RegionType tn = region.getType();
         BlockVector p0 = region.getMinimumPoint();
         BlockVector p1 = region.getMaximumPoint();
 
-        double[] x = null;
-        double[] z = null;
+        out.clear();
         if(tn == RegionType.CUBOID) {
-            x = new double[4];
-            z = new double[4];
-            x[0] = p0.getX(); z[0] = p0.getZ();
-            x[1] = p0.getX(); z[1] = p1.getZ()+1.0;
-            x[2] = p1.getX() + 1.0; z[2] = p1.getZ()+1.0;
-            x[3] = p1.getX() + 1.0; z[3] = p0.getZ();
+            out.add(p0.getX(), p0.getZ());
+            out.add(p0.getX(), p1.getZ() + 1.0);
+            out.add(p1.getX() + 1.0, p1.getZ() + 1.0);
+            out.add(p1.getX() + 1.0, p0.getZ());
         } else if(tn == RegionType.POLYGON) {
             ProtectedPolygonalRegion ppr = (ProtectedPolygonalRegion)region;
             List<BlockVector2D> points = ppr.getPoints();
-            x = new double[points.size()];
-            z = new double[points.size()];
             for(int i = 0; i < points.size(); i++) {
                 BlockVector2D pt = points.get(i);
-                x[i] = pt.getX(); z[i] = pt.getZ();
+                out.add(pt.getX(), pt.getZ());
             }
         } else {
             // Unsupported type
-            return null;
+            return false;
         }
-        return new AbstractMap.SimpleEntry<double[], double[]>(x, z);
-    }
-
-    @Override
-    double getLowerY(ProtectedRegion region) {
-        return region.getMinimumPoint().getY();
-    }
-
-    @Override
-    double getUpperY(ProtectedRegion region) {
-        return region.getMaximumPoint().getY() + 1;
+        out.setHeight(p0.getY(), p1.getY() + 1);
+        return true;
     }
 }